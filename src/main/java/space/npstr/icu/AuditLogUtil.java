@@ -29,6 +29,7 @@ import net.dv8tion.jda.api.exceptions.ErrorResponseException;
 import net.dv8tion.jda.api.requests.ErrorResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import space.npstr.icu.discord.BanMirror;
 
 /**
  * Created by napster on 16.05.18.
@@ -43,8 +44,11 @@ public class AuditLogUtil {
     private AuditLogUtil() {}
 
 
-    public static Optional<String> getBanReason(Guild guild, User user, OffsetDateTime banTime) {
-        return getReasonFromBanlist(guild, user)
+    public static Optional<String> getBanReason(BanMirror banMirror, Guild guild, User user, OffsetDateTime banTime) {
+        Optional<String> fromBanList = banMirror.isMirrored(guild)
+                ? getReasonFromMirror(banMirror, guild, user)
+                : getReasonFromBanlist(guild, user);
+        return fromBanList
                 .or(() -> getAuditLogEntry(guild, user, ActionType.BAN, banTime)
                         .map(AuditLogEntry::getReason));
     }
@@ -59,6 +63,18 @@ public class AuditLogUtil {
         return getAuditLogEntry(guild, user, ActionType.KICK, leaveTime);
     }
 
+    private static Optional<String> getReasonFromMirror(BanMirror banMirror, Guild guild, User user) {
+        try {
+            return banMirror.getBanReason(guild, user.getIdLong()).get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("Failed to get ban reason for banned user {} of guild {} from the ban mirror", user, guild, e);
+            return Optional.empty();
+        }
+    }
+
     private static Optional<String> getReasonFromBanlist(Guild guild, User user) {
         if (guild.getSelfMember().hasPermission(Permission.BAN_MEMBERS)) {
             try {
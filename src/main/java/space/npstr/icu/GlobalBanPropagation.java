@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import space.npstr.icu.db.entities.GlobalBan;
+
+/**
+ * Hands new global bans over to the {@link GlobalBanSync}, which bans them right away instead of on its next run.
+ * <p>
+ * Kept apart from the sync itself, since the commands publishing to it are created before the shard manager the sync
+ * depends on.
+ */
+@Component
+public class GlobalBanPropagation {
+
+    private final ConcurrentLinkedQueue<GlobalBan> queue = new ConcurrentLinkedQueue<>();
+    private volatile Runnable onPublish = () -> {};
+
+    /**
+     * Queue new global bans for propagation. Joins an ongoing transaction, in which case they are queued once it
+     * commits, so bans that are rolled back are not propagated.
+     */
+    public void publish(Collection<GlobalBan> bans) {
+        if (bans.isEmpty()) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            List<GlobalBan> copy = List.copyOf(bans);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    enqueue(copy);
+                }
+            });
+        } else {
+            enqueue(bans);
+        }
+    }
+
+    private void enqueue(Collection<GlobalBan> bans) {
+        queue.addAll(bans);
+        onPublish.run();
+    }
+
+    void onPublish(Runnable onPublish) {
+        this.onPublish = onPublish;
+    }
+
+    List<GlobalBan> drain() {
+        List<GlobalBan> drained = new ArrayList<>();
+        GlobalBan ban;
+        while ((ban = queue.poll()) != null) {
+            drained.add(ban);
+        }
+        return drained;
+    }
+}
@@ -17,71 +17,173 @@
 
 package space.npstr.icu;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.BulkBanResponse;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.ISnowflake;
 import net.dv8tion.jda.api.entities.UserSnowflake;
 import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+import net.dv8tion.jda.api.exceptions.ErrorResponseException;
 import net.dv8tion.jda.api.sharding.ShardManager;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 import space.npstr.icu.db.entities.GlobalBan;
 import space.npstr.icu.db.entities.GlobalBanRepository;
-import space.npstr.icu.db.entities.GuildSettings;
-import space.npstr.icu.db.entities.GuildSettingsRepository;
+import space.npstr.icu.db.entities.GuildSettingsCache;
+import space.npstr.icu.db.entities.GuildSettingsSnapshot;
+import space.npstr.icu.discord.BanMirror;
 
 /**
  * Created by napster on 11.03.18.
+ * <p>
+ * Every change of the global ban list gets a new revision, and each guild remembers up to which revision it is synced.
+ * A regular sync only pushes the bans with newer revisions. Once in a while a full reconciliation compares the whole
+ * global ban list against the ban list of each guild instead, which is also how guilds that never synced get started.
+ * <p>
+ * New global bans do not wait for the next sync, they arrive through the {@link GlobalBanPropagation} and are banned
+ * right away. The sync is the safety net for anything the propagation missed.
  */
 @Component
 public class GlobalBanSync {
 
     private static final Logger log = LoggerFactory.getLogger(GlobalBanSync.class);
 
-    private final GuildSettingsRepository guildSettingsRepo;
+    //max users per request of the bulk ban endpoint
+    private static final int BULK_BAN_LIMIT = 200;
+    private static final Duration BAN_DELETION_TIMEFRAME = Duration.ofDays(1);
+    //how long the bans of a single guild may take before moving on to the next guild
+    private static final Duration BAN_TIMEOUT = Duration.ofMinutes(5);
+
+    private final GlobalBanRepository globalBanRepo;
+    private final GuildSettingsCache guildSettingsCache;
     private final ShardManager shardManager;
+    private final BanMirror banMirror;
+    private final GlobalBanPropagation propagation;
+    private final long reconciliationIntervalMillis;
+    private long lastReconciliation = 0;
 
-    public GlobalBanSync(GlobalBanRepository globalBanRepo, GuildSettingsRepository guildSettingsRepo, ShardManager shardManager) {
-        this.guildSettingsRepo = guildSettingsRepo;
+    public GlobalBanSync(GlobalBanRepository globalBanRepo, GuildSettingsCache guildSettingsCache, ShardManager shardManager,
+                         BanMirror banMirror, GlobalBanPropagation propagation, GlobalBanProperties properties) {
+        this.globalBanRepo = globalBanRepo;
+        this.guildSettingsCache = guildSettingsCache;
         this.shardManager = shardManager;
+        this.banMirror = banMirror;
+        this.propagation = propagation;
+        this.reconciliationIntervalMillis = properties.reconciliationInterval().toMillis();
 
 
         ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(
                 r -> new Thread(r, GlobalBanSync.class.getSimpleName() + "-worker")
         );
 
-        service.scheduleAtFixedRate(() -> {
-            try {
-                List<GlobalBan> globalBans = Collections.unmodifiableList(globalBanRepo.findAll());
-                this.shardManager.getGuildCache().forEach(guild -> {
-                    try {
-                        syncGlobalBans(guild, globalBans);
-                    } catch (Exception e) {
-                        log.error("Failed to sync global bans for guild {}", guild, e);
+        long syncIntervalMillis = properties.syncInterval().toMillis();
+        service.scheduleAtFixedRate(this::sync, 60_000, syncIntervalMillis, TimeUnit.MILLISECONDS);
+
+        //a separate thread, so new bans do not wait for a running sync. both banning the same user does no harm.
+        ExecutorService propagator = Executors.newSingleThreadExecutor(
+                r -> new Thread(r, GlobalBanSync.class.getSimpleName() + "-propagation")
+        );
+        propagation.onPublish(() -> propagator.execute(this::propagate));
+    }
+
+    /**
+     * Ban freshly published global bans in all guilds that enabled them, starting with the guilds that the banned users
+     * are a member of. Guild revisions are left alone, the next sync takes care of those.
+     */
+    private void propagate() {
+        try {
+            List<GlobalBan> bans = propagation.drain();
+            if (bans.isEmpty()) {
+                return;
+            }
+            long started = System.currentTimeMillis();
+            //guilds where a banned user is around go first
+            List<Guild> guilds = new ArrayList<>();
+            List<Guild> guildsWithoutMembers = new ArrayList<>();
+            this.shardManager.getGuildCache().forEach(guild -> {
+                if (!guildSettingsCache.get(guild).areGlobalBansEnabled()
+                        || !guild.getSelfMember().hasPermission(Permission.BAN_MEMBERS)) {
+                    return;
+                }
+                boolean hasMember = bans.stream().anyMatch(ban -> guild.getMemberById(ban.getUserId()) != null);
+                (hasMember ? guilds : guildsWithoutMembers).add(guild);
+            });
+            guilds.addAll(guildsWithoutMembers);
+
+            int banned = 0;
+            int failed = 0;
+            for (Guild guild : guilds) {
+                try {
+                    Map<String, List<UserSnowflake>> usersByReason = missingBansByReason(guild, bans);
+                    if (usersByReason.isEmpty()) {
+                        continue;
                     }
-                });
-            } catch (Exception e) {
-                log.error("Failed to sync global bans", e);
+                    BanOutcome outcome = issueBans(guild, usersByReason);
+                    banned += outcome.banned;
+                    failed += outcome.failed;
+                } catch (Exception e) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    log.error("Failed to propagate global bans to guild {}", guild, e);
+                }
+            }
+            log.info("Propagated {} new global bans to {} guilds in {}ms, {} bans issued, {} failed",
+                bans.size(), guilds.size(), System.currentTimeMillis() - started, banned, failed);
+        } catch (Exception e) {
+            log.error("Failed to propagate global bans", e);
+        }
+    }
+
+    private void sync() {
+        try {
+            long started = System.currentTimeMillis();
+            boolean reconcile = started - lastReconciliation >= reconciliationIntervalMillis;
+            if (reconcile) {
+                lastReconciliation = started;
             }
-        }, 1, 10, TimeUnit.MINUTES);
+            //bans committed after this are picked up by the next run
+            long latestRevision = globalBanRepo.findLatestRevision();
+            SyncRun run = new SyncRun(latestRevision);
+            this.shardManager.getGuildCache().forEach(guild -> {
+                try {
+                    syncGlobalBans(guild, run, reconcile);
+                } catch (Exception e) {
+                    log.error("Failed to sync global bans for guild {}", guild, e);
+                }
+            });
+            log.info("{} global bans up to revision {} in {}ms, {} guilds reconciled, {} guilds got new bans, {} bans issued, {} failed",
+                reconcile ? "Reconciled" : "Synced", latestRevision, System.currentTimeMillis() - started,
+                run.reconciledGuilds, run.updatedGuilds, run.issuedBans, run.failedBans);
+        } catch (Exception e) {
+            log.error("Failed to sync global bans", e);
+        }
     }
 
-    private void syncGlobalBans(Guild guild, List<GlobalBan> globalBans)
+    private void syncGlobalBans(Guild guild, SyncRun run, boolean reconcile)
             throws InterruptedException, ExecutionException, TimeoutException {
 
-        GuildSettings settings = guildSettingsRepo.findOrCreateByGuild(guild);
+        GuildSettingsSnapshot settings = guildSettingsCache.get(guild);
         if (!settings.areGlobalBansEnabled()) {
             return;
         }
@@ -99,33 +201,194 @@ public class GlobalBanSync {
             return;
         }
 
+        Long syncedRevision = settings.getGlobalBansRevision();
+        List<GlobalBan> toBan;
+        if (reconcile || syncedRevision == null) {
+            toBan = new ArrayList<>();
+            if (banMirror.isMirrored(guild)) {
+                for (GlobalBan ban : run.allBans()) {
+                    if (!banMirror.isBanned(guild, ban.getUserId())) {
+                        toBan.add(ban);
+                    }
+                }
+            } else {
+                Set<Long> guildBanList = guild.retrieveBanList().submit().get(5, TimeUnit.MINUTES)
+                        .stream()
+                        .map(Guild.Ban::getUser)
+                        .map(ISnowflake::getIdLong)
+                        .collect(Collectors.toSet());
+                for (GlobalBan ban : run.allBans()) {
+                    if (!guildBanList.contains(ban.getUserId())) {
+                        toBan.add(ban);
+                    }
+                }
+            }
+            run.reconciledGuilds++;
+        } else if (syncedRevision < run.latestRevision) {
+            toBan = run.bansAfter(syncedRevision);
+            run.updatedGuilds++;
+        } else {
+            return;
+        }
+
 
-        Set<Long> guildBanList = guild.retrieveBanList().submit().get(5, TimeUnit.MINUTES)
-                .stream()
-                .map(Guild.Ban::getUser)
-                .map(ISnowflake::getIdLong)
-                .collect(Collectors.toSet());
+        Map<String, List<UserSnowflake>> usersByReason = missingBansByReason(guild, toBan);
+        if (usersByReason.isEmpty()) {
+            advanceRevision(guild, syncedRevision, run);
+            return;
+        }
 
-        List<GlobalBan> toBan = new ArrayList<>();
+        BanOutcome outcome = issueBans(guild, usersByReason);
+        run.issuedBans += outcome.banned;
+        run.failedBans += outcome.failed;
+        log.info("Issued global bans in guild {}: {} banned, {} failed{}", guild, outcome.banned, outcome.failed,
+            outcome.retryableRequests > 0 ? ", " + outcome.retryableRequests + " requests to be retried" : "");
 
-        for (GlobalBan ban : globalBans) {
-            if (!guildBanList.contains(ban.getUserId())) {
-                toBan.add(ban);
-            }
+        //if any request failed for a passing reason, the revision is not advanced, so its bans are retried next run
+        if (outcome.retryableRequests > 0) {
+            return;
         }
+        advanceRevision(guild, syncedRevision, run);
+    }
 
+    private void advanceRevision(Guild guild, @Nullable Long syncedRevision, SyncRun run) {
+        if (syncedRevision == null || syncedRevision != run.latestRevision) {
+            guildSettingsCache.updateGlobalBansRevision(guild, run.latestRevision);
+        }
+    }
 
-        List<CompletableFuture<?>> futures = new ArrayList<>();
-        for (GlobalBan ban : toBan) {
+    //bans sharing a reason go out together, most global bans are issued with one of a few reasons
+    private Map<String, List<UserSnowflake>> missingBansByReason(Guild guild, Collection<GlobalBan> bans) {
+        boolean mirrored = banMirror.isMirrored(guild);
+        Map<String, List<UserSnowflake>> usersByReason = new LinkedHashMap<>();
+        for (GlobalBan ban : bans) {
+            if (mirrored && banMirror.isBanned(guild, ban.getUserId())) {
+                continue;
+            }
             String reason = "[i.c.u. Global Ban List] " + ban.getReason();
             if (reason.length() >= 512) { //max audit log size
                 reason = reason.substring(0, 512);
             }
+            usersByReason.computeIfAbsent(reason, __ -> new ArrayList<>()).add(UserSnowflake.fromId(ban.getUserId()));
+        }
+        return usersByReason;
+    }
 
-            futures.add(guild.ban(UserSnowflake.fromId(ban.getUserId()), 1, TimeUnit.DAYS).reason(reason).submit());
+    private BanOutcome issueBans(Guild guild, Map<String, List<UserSnowflake>> usersByReason) throws InterruptedException {
+        //the bulk ban endpoint additionally requires the manage server permission
+        return guild.getSelfMember().hasPermission(Permission.MANAGE_SERVER)
+            ? bulkBan(guild, usersByReason)
+            : banOneByOne(guild, usersByReason);
+    }
+
+    private BanOutcome bulkBan(Guild guild, Map<String, List<UserSnowflake>> usersByReason) throws InterruptedException {
+        List<CompletableFuture<BulkBanResponse>> futures = new ArrayList<>();
+        List<Integer> chunkSizes = new ArrayList<>();
+        for (Map.Entry<String, List<UserSnowflake>> entry : usersByReason.entrySet()) {
+            List<UserSnowflake> users = entry.getValue();
+            for (int i = 0; i < users.size(); i += BULK_BAN_LIMIT) {
+                List<UserSnowflake> chunk = users.subList(i, Math.min(i + BULK_BAN_LIMIT, users.size()));
+                futures.add(guild.ban(chunk, BAN_DELETION_TIMEFRAME).reason(entry.getKey()).submit());
+                chunkSizes.add(chunk.size());
+            }
         }
 
-        //wait to be done before moving on
-        CompletableFuture.allOf(futures.toArray(new CompletableFuture[]{}));
+        BanOutcome outcome = new BanOutcome();
+        long deadline = System.nanoTime() + BAN_TIMEOUT.toNanos();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                BulkBanResponse response = futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                outcome.banned += response.getBannedUsers().size();
+                //users that could not be banned, for example because they are banned already, are not retried
+                outcome.failed += response.getFailedUsers().size();
+            } catch (ExecutionException | TimeoutException e) {
+                outcome.failed += chunkSizes.get(i);
+                if (isRetryable(e)) {
+                    outcome.retryableRequests++;
+                    log.warn("Bulk ban request in guild {} failed, retrying next run", guild, e);
+                } else {
+                    log.warn("Bulk ban request of {} users in guild {} was rejected", chunkSizes.get(i), guild, e);
+                }
+            }
+        }
+        return outcome;
+    }
+
+    private BanOutcome banOneByOne(Guild guild, Map<String, List<UserSnowflake>> usersByReason) throws InterruptedException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Map.Entry<String, List<UserSnowflake>> entry : usersByReason.entrySet()) {
+            for (UserSnowflake user : entry.getValue()) {
+                futures.add(guild.ban(user, (int) BAN_DELETION_TIMEFRAME.toDays(), TimeUnit.DAYS).reason(entry.getKey()).submit());
+            }
+        }
+
+        BanOutcome outcome = new BanOutcome();
+        long deadline = System.nanoTime() + BAN_TIMEOUT.toNanos();
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                outcome.banned++;
+            } catch (ExecutionException | TimeoutException e) {
+                outcome.failed++;
+                if (isRetryable(e)) {
+                    outcome.retryableRequests++;
+                } else {
+                    outcome.rejected++;
+                }
+            }
+        }
+        if (outcome.rejected > 0) {
+            log.warn("{} bans in guild {} were rejected", outcome.rejected, guild);
+        }
+        return outcome;
+    }
+
+    //an error response of discord, like unknown user, missing permissions or no users banned, comes back the same way
+    // on every retry, while timeouts and server errors may pass
+    private static boolean isRetryable(Exception e) {
+        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+        return !(cause instanceof ErrorResponseException errorResponse) || errorResponse.isServerError();
+    }
+
+    private static class BanOutcome {
+        private int banned;
+        private int failed;
+        //requests that were rejected for good, their users are counted as failed
+        private int rejected;
+        //requests that failed for a reason that may pass, like a timeout or a server error
+        private int retryableRequests;
+    }
+
+    /**
+     * Global bans shared by all guilds during one run of the sync, loaded once when first needed.
+     */
+    private class SyncRun {
+
+        private final long latestRevision;
+        @Nullable
+        private List<GlobalBan> allBans;
+        //synced revision -> bans with a newer revision, most guilds are at the same revision
+        private final Map<Long, List<GlobalBan>> bansAfter = new HashMap<>();
+        private int reconciledGuilds;
+        private int updatedGuilds;
+        private int issuedBans;
+        private int failedBans;
+
+        private SyncRun(long latestRevision) {
+            this.latestRevision = latestRevision;
+        }
+
+        private List<GlobalBan> allBans() {
+            if (allBans == null) {
+                allBans = Collections.unmodifiableList(globalBanRepo.findAll());
+            }
+            return allBans;
+        }
+
+        private List<GlobalBan> bansAfter(long revision) {
+            return bansAfter.computeIfAbsent(revision, __ -> globalBanRepo.findByRevisionGreaterThanOrderByRevision(revision).stream()
+                .filter(ban -> ban.getRevision() <= latestRevision)
+                .toList());
+        }
     }
 }
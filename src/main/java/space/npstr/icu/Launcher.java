@@ -21,7 +21,9 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.concurrent.CompletionException;
+import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDAInfo;
+import net.dv8tion.jda.api.sharding.ShardManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.SpringApplication;
@@ -30,16 +32,31 @@ import org.springframework.boot.context.event.ApplicationEnvironmentPreparedEven
 import org.springframework.boot.context.event.ApplicationFailedEvent;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.jspecify.annotations.Nullable;
+import space.npstr.icu.db.entities.MemberRolesProperties;
+import space.npstr.icu.discord.BanMirrorProperties;
 import space.npstr.icu.discord.DiscordProperties;
 import space.npstr.icu.info.AppInfo;
 import space.npstr.icu.info.GitRepoState;
+import space.npstr.icu.listeners.ListenerProperties;
+import space.npstr.icu.listeners.RaidDetectionProperties;
+import space.npstr.icu.listeners.ReportProperties;
+import space.npstr.icu.metrics.MetricsProperties;
+import space.npstr.icu.suspicion.SuspicionProperties;
 
 /**
  * Created by napster on 27.12.17.
  */
 @SpringBootApplication
 @EnableConfigurationProperties({
+    BanMirrorProperties.class,
     DiscordProperties.class,
+    GlobalBanProperties.class,
+    ListenerProperties.class,
+    MemberRolesProperties.class,
+    MetricsProperties.class,
+    RaidDetectionProperties.class,
+    ReportProperties.class,
+    SuspicionProperties.class,
 })
 public class Launcher {
 
@@ -119,6 +136,13 @@ public class Launcher {
         return realCause;
     }
 
+    //a guild that is down on discord's side, or whose shard is not connected, is not in the guild cache but not left either
+    public static boolean isUnavailable(ShardManager sm, long guildId) {
+        int shardId = (int) ((guildId >>> 22) % sm.getShardsTotal());
+        JDA shard = sm.getShardById(shardId);
+        return shard == null || shard.isUnavailable(guildId);
+    }
+
     private static String getVersionInfo() {
 
         return "\n\n"
@@ -17,7 +17,7 @@
 
 package space.npstr.icu;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.List;
 import net.dv8tion.jda.api.entities.Activity;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
@@ -30,6 +30,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.jspecify.annotations.Nullable;
 import org.springframework.stereotype.Component;
+import space.npstr.icu.discord.AdminService;
+import space.npstr.icu.discord.BanMirror;
 import space.npstr.icu.discord.DiscordProperties;
 import space.npstr.icu.listeners.ThreadedListener;
 
@@ -44,14 +46,18 @@ public class ShardManagerManager {
     private static final Logger log = LoggerFactory.getLogger(ShardManagerManager.class);
 
     private final DiscordProperties discordProperties;
-    private final List<ThreadedListener> listeners;
+    private final List<ListenerAdapter> listeners;
     @Nullable
     private volatile ShardManager shardManager;
     private final Object shardManagerInitLock = new Object();
 
-    public ShardManagerManager(DiscordProperties discordProperties, List<ThreadedListener> listeners) {
+    public ShardManagerManager(DiscordProperties discordProperties, List<ThreadedListener> listeners,
+                               AdminService adminService, BanMirror banMirror) {
         this.discordProperties = discordProperties;
-        this.listeners = listeners;
+        this.listeners = new ArrayList<>();
+        this.listeners.add(banMirror); //ahead of everyone else, so the listeners asking it about a ban see that ban
+        this.listeners.addAll(listeners);
+        this.listeners.add(adminService); //keeps its admin index up to date, directly on the event thread
     }
 
     public ShardManager getShardManager() {
@@ -76,7 +82,7 @@ public class ShardManagerManager {
         }
     }
 
-    private ShardManager initShardManager(Collection<? extends ListenerAdapter> listeners) {
+    private ShardManager initShardManager(List<ListenerAdapter> listeners) {
         DefaultShardManagerBuilder shardBuilder = DefaultShardManagerBuilder
             .createDefault(discordProperties.token())
             .enableIntents(GatewayIntent.GUILD_MEMBERS, GatewayIntent.MESSAGE_CONTENT)
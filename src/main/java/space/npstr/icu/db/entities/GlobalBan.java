@@ -22,6 +22,7 @@ import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.Table;
 import java.util.Objects;
+import org.hibernate.annotations.ColumnDefault;
 
 /**
  * Created by napster on 10.03.18.
@@ -42,6 +43,11 @@ public class GlobalBan {
     @Column(name = "created", nullable = false)
     private long created = System.currentTimeMillis();
 
+    //increases with every change of the global ban list, guilds remember up to which revision they are synced
+    @Column(name = "revision", nullable = false)
+    @ColumnDefault("0")
+    private long revision;
+
     //JPA / wrapper
     GlobalBan() {}
 
@@ -65,6 +71,14 @@ public class GlobalBan {
         return created;
     }
 
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+
     @Override
     public boolean equals(final Object obj) {
         return (obj instanceof GlobalBan) && ((GlobalBan) obj).userId == this.userId;
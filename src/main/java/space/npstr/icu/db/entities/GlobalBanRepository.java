@@ -17,18 +17,66 @@
 
 package space.npstr.icu.db.entities;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import net.dv8tion.jda.api.entities.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
 @Repository
 public interface GlobalBanRepository extends JpaRepository<GlobalBan, Long> {
 
+	//key of the advisory lock that serializes handing out revisions
+	long REVISION_LOCK = 0x6963755F72657673L;
+
 	default GlobalBan findOrCreateByUser(User user) {
 		return findById(user.getIdLong())
 			.orElseGet(() -> this.save(new GlobalBan(user.getIdLong())));
 	}
 
+	/**
+	 * Create or update the global ban of a user, under a new revision so that the change gets synced to all guilds.
+	 */
+	default GlobalBan banUser(User user, String reason) {
+		return banUsers(List.of(user), reason).getFirst();
+	}
+
+	/**
+	 * Create or update the global bans of the users, all under the same new revision. Has to run in a transaction.
+	 */
+	default List<GlobalBan> banUsers(Collection<User> users, String reason) {
+		//the sync advances the revision of a guild up to the latest committed one, and never looks below it again. so
+		// revisions have to be committed in the order they are handed out: the lock is held until this transaction
+		// ends, and the next one reads the latest revision only after this one committed. a sequence would not do,
+		// a later value could commit first and move guilds past an earlier one that is still in flight
+		lockRevisions();
+		long revision = findLatestRevision() + 1;
+		List<GlobalBan> bans = new ArrayList<>(users.size());
+		for (User user : users) {
+			GlobalBan ban = findOrCreateByUser(user);
+			ban.setReason(reason);
+			ban.setRevision(revision);
+			bans.add(ban);
+		}
+		return bans;
+	}
+
+	/**
+	 * Wait for other transactions handing out revisions to end, and keep them waiting until the current one ends.
+	 */
+	@Transactional(propagation = Propagation.MANDATORY)
+	@Query(value = "SELECT 1 FROM pg_advisory_xact_lock(" + REVISION_LOCK + ")", nativeQuery = true)
+	int lockRevisions();
+
+	@Query("SELECT coalesce(max(b.revision), 0) FROM GlobalBan b")
+	long findLatestRevision();
+
+	List<GlobalBan> findByRevisionGreaterThanOrderByRevision(long revision);
+
 	default void deleteByUser(User user) {
 		deleteById(user.getIdLong());
 	}
@@ -22,10 +22,7 @@ import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.Table;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.Objects;
-import java.util.Set;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
@@ -56,10 +53,10 @@ public class GuildSettings {
     private Long memberRoleId;
 
     @Column(name = "admin_role_ids", columnDefinition = "bigint[]", nullable = false)
-    private Set<Long> adminRoleIds = new HashSet<>();
+    private long[] adminRoleIds = LongSets.EMPTY;
 
     @Column(name = "admin_user_ids", columnDefinition = "bigint[]", nullable = false)
-    private Set<Long> adminUserIds = new HashSet<>();
+    private long[] adminUserIds = LongSets.EMPTY;
 
     @Nullable
     @Column(name = "reporting_channel_id", nullable = true)
@@ -75,7 +72,23 @@ public class GuildSettings {
 
     @Column(name = "ignored_role_ids", columnDefinition = "bigint[]", nullable = false)
     @ColumnDefault("array[]::bigint[]")
-    private Set<Long> ignoredRoleIds = new HashSet<>();
+    private long[] ignoredRoleIds = LongSets.EMPTY;
+
+    //null means the configured default applies
+    @Nullable
+    @Column(name = "member_roles_retention_days", nullable = true)
+    private Integer memberRolesRetentionDays;
+
+    //global ban revision up to which this guild has been synced, null if it never was. only ever written through
+    // GuildSettingsRepository#updateGlobalBansRevision, so saving other settings never reverts it
+    @Nullable
+    @Column(name = "global_bans_revision", nullable = true, insertable = false, updatable = false)
+    private Long globalBansRevision;
+
+    //null means the configured default applies
+    @Nullable
+    @Column(name = "suspicion_threshold", nullable = true)
+    private Integer suspicionThreshold;
 
     //jpa / database wrapper
     public GuildSettings() {}
@@ -84,6 +97,20 @@ public class GuildSettings {
         this.guildId = guildId;
     }
 
+    //rows written before the ids were kept sorted may be in any order. normalized when read instead of once on load,
+    // since changing the loaded fields would make the row dirty, and get it written on every read
+    private long[] adminRoleIds() {
+        return LongSets.normalize(adminRoleIds);
+    }
+
+    private long[] adminUserIds() {
+        return LongSets.normalize(adminUserIds);
+    }
+
+    private long[] ignoredRoleIds() {
+        return LongSets.normalize(ignoredRoleIds);
+    }
+
     public long getGuildId() {
         return this.guildId;
     }
@@ -130,7 +157,7 @@ public class GuildSettings {
 
 
     public void addAdminRole(Role role) {
-        adminRoleIds.add(role.getIdLong());
+        adminRoleIds = LongSets.add(adminRoleIds(), role.getIdLong());
     }
 
     public void addAdminRoles(Collection<Role> roles) {
@@ -140,21 +167,21 @@ public class GuildSettings {
     }
 
     public void removeAdminRole(long roleId) {
-        adminRoleIds.remove(roleId);
+        adminRoleIds = LongSets.remove(adminRoleIds(), roleId);
     }
 
     public void removeAdminRole(Role role) {
         removeAdminRole(role.getIdLong());
     }
 
-    //use one of the other methods to add / remove admins
-    public Collection<Long> getAdminRoleIds() {
-        return Collections.unmodifiableCollection(adminRoleIds);
+    //sorted, do not modify. use one of the other methods to add / remove admins
+    public long[] getAdminRoleIds() {
+        return adminRoleIds();
     }
 
 
     public void addAdminUser(Member member) {
-        adminUserIds.add(member.getUser().getIdLong());
+        adminUserIds = LongSets.add(adminUserIds(), member.getUser().getIdLong());
     }
 
     public void addAdminUsers(Collection<Member> members) {
@@ -164,26 +191,26 @@ public class GuildSettings {
     }
 
     public void removeAdminUser(long userId) {
-        adminUserIds.remove(userId);
+        adminUserIds = LongSets.remove(adminUserIds(), userId);
     }
 
     public void removeAdminUser(Member member) {
         removeAdminUser(member.getUser().getIdLong());
     }
 
-    //use one of the other methods to add / remove admins
-    public Collection<Long> getAdminUserIds() {
-        return Collections.unmodifiableCollection(adminUserIds);
+    //sorted, do not modify. use one of the other methods to add / remove admins
+    public long[] getAdminUserIds() {
+        return adminUserIds();
     }
 
     //only true if this roles id is explicitly set as admin
     public boolean isAdminRole(Role role) {
-        return role.getGuild().getIdLong() == guildId && adminRoleIds.contains(role.getIdLong());
+        return role.getGuild().getIdLong() == guildId && LongSets.contains(adminRoleIds(), role.getIdLong());
     }
 
     //only true if this users id is explicitly set as admin
     public boolean isAdminUser(Member member) {
-        return member.getGuild().getIdLong() == guildId && adminUserIds.contains(member.getUser().getIdLong());
+        return member.getGuild().getIdLong() == guildId && LongSets.contains(adminUserIds(), member.getUser().getIdLong());
     }
 
     //returns true if the member is an admin for this guild as defined by the guild settings
@@ -191,13 +218,14 @@ public class GuildSettings {
     public boolean isAdmin(Member member) {
         if (member.getGuild().getIdLong() != guildId) return false;
 
+        long[] adminRoles = adminRoleIds();
         for (Role r : member.getRoles()) {
-            if (adminRoleIds.contains(r.getIdLong())) {
+            if (LongSets.contains(adminRoles, r.getIdLong())) {
                 return true;
             }
         }
 
-        return adminUserIds.contains(member.getUser().getIdLong());
+        return LongSets.contains(adminUserIds(), member.getUser().getIdLong());
     }
 
     @Nullable
@@ -229,6 +257,11 @@ public class GuildSettings {
         setGlobalBansEnabled(false);
     }
 
+    @Nullable
+    public Long getGlobalBansRevision() {
+        return globalBansRevision;
+    }
+
 
     @Nullable
     public Long getLogChannelId() {
@@ -243,12 +276,13 @@ public class GuildSettings {
         this.logChannelId = null;
     }
 
-    public Collection<Long> getIgnoredRoleIds() {
-        return Collections.unmodifiableCollection(ignoredRoleIds);
+    //sorted, do not modify
+    public long[] getIgnoredRoleIds() {
+        return ignoredRoleIds();
     }
 
     public void addIgnoredRole(Role role) {
-        this.ignoredRoleIds.add(role.getIdLong());
+        this.ignoredRoleIds = LongSets.add(ignoredRoleIds(), role.getIdLong());
     }
 
     public void addIgnoredRoles(Collection<Role> roles) {
@@ -258,7 +292,7 @@ public class GuildSettings {
     }
 
     public void removeIgnoredRoleId(long roleId) {
-        this.ignoredRoleIds.remove(roleId);
+        this.ignoredRoleIds = LongSets.remove(ignoredRoleIds(), roleId);
     }
 
     public void removeIgnoredRole(Role role) {
@@ -266,13 +300,39 @@ public class GuildSettings {
     }
 
     public boolean isIgnoredRoleId(long roleId) {
-        return ignoredRoleIds.contains(roleId);
+        return LongSets.contains(ignoredRoleIds(), roleId);
     }
 
     public boolean isIgnoredRole(Role role) {
         return isIgnoredRoleId(role.getIdLong());
     }
 
+    @Nullable
+    public Integer getMemberRolesRetentionDays() {
+        return memberRolesRetentionDays;
+    }
+
+    public void setMemberRolesRetentionDays(int days) {
+        this.memberRolesRetentionDays = days;
+    }
+
+    public void resetMemberRolesRetentionDays() {
+        this.memberRolesRetentionDays = null;
+    }
+
+    @Nullable
+    public Integer getSuspicionThreshold() {
+        return suspicionThreshold;
+    }
+
+    public void setSuspicionThreshold(int threshold) {
+        this.suspicionThreshold = threshold;
+    }
+
+    public void resetSuspicionThreshold() {
+        this.suspicionThreshold = null;
+    }
+
     @Override
     public boolean equals(final Object obj) {
         return (obj instanceof GuildSettings) && ((GuildSettings) obj).guildId == this.guildId;
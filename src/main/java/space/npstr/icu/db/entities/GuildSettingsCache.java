@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.db.entities;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import net.dv8tion.jda.api.entities.Guild;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Process wide cache of the settings of all guilds, loaded in bulk on startup.
+ * <p>
+ * Reads hand out immutable {@link GuildSettingsSnapshot}s and never touch the database. Guilds without a row get the
+ * shared defaults. Changes go through {@link #update}, which is the only place that creates rows, and refresh the cache
+ * once committed.
+ */
+@Component
+public class GuildSettingsCache {
+
+    private static final Logger log = LoggerFactory.getLogger(GuildSettingsCache.class);
+
+    private final GuildSettingsRepository guildSettingsRepo;
+    private final TransactionTemplate transactionTemplate;
+    private final ConcurrentHashMap<Long, GuildSettingsSnapshot> snapshots = new ConcurrentHashMap<>();
+
+    public GuildSettingsCache(GuildSettingsRepository guildSettingsRepo, TransactionTemplate transactionTemplate) {
+        this.guildSettingsRepo = guildSettingsRepo;
+        this.transactionTemplate = transactionTemplate;
+
+        long started = System.currentTimeMillis();
+        List<GuildSettings> all = guildSettingsRepo.findAll();
+        for (GuildSettings settings : all) {
+            snapshots.put(settings.getGuildId(), new GuildSettingsSnapshot(settings));
+        }
+        log.info("Loaded settings of {} guilds in {}ms", all.size(), System.currentTimeMillis() - started);
+    }
+
+    public GuildSettingsSnapshot get(Guild guild) {
+        //all rows are loaded on startup and every change goes through update, so a miss means the guild has no row
+        return snapshots.getOrDefault(guild.getIdLong(), GuildSettingsSnapshot.DEFAULTS);
+    }
+
+    /**
+     * Apply a change to the settings of a guild and persist it. Joins an ongoing transaction, in which case the cache
+     * is refreshed after it commits.
+     *
+     * @return the changed settings
+     */
+    public GuildSettingsSnapshot update(Guild guild, Consumer<GuildSettings> change) {
+        GuildSettingsSnapshot updated = transactionTemplate.execute(__ -> {
+            GuildSettings settings = guildSettingsRepo.findOrCreateByGuild(guild);
+            change.accept(settings);
+            return new GuildSettingsSnapshot(guildSettingsRepo.save(settings));
+        });
+        if (updated == null) {
+            throw new IllegalStateException("Transaction returned no settings for guild " + guild);
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    snapshots.put(guild.getIdLong(), updated);
+                }
+            });
+        } else {
+            snapshots.put(guild.getIdLong(), updated);
+        }
+        return updated;
+    }
+
+    /**
+     * Persist the global ban revision a guild is synced to, without touching any other setting of it. Guilds without a
+     * row have global bans disabled, so there is nothing to do for them.
+     */
+    public void updateGlobalBansRevision(Guild guild, long revision) {
+        if (guildSettingsRepo.updateGlobalBansRevision(guild.getIdLong(), revision) > 0) {
+            snapshots.computeIfPresent(guild.getIdLong(), (__, snapshot) -> snapshot.withGlobalBansRevision(revision));
+        }
+    }
+}
@@ -19,13 +19,30 @@ package space.npstr.icu.db.entities;
 
 import net.dv8tion.jda.api.entities.Guild;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 @Repository
 public interface GuildSettingsRepository extends JpaRepository<GuildSettings, Long> {
 
+	/**
+	 * Creates the row if there is none yet, so only use this when changing settings. Reads go through the
+	 * {@link GuildSettingsCache}.
+	 */
 	default GuildSettings findOrCreateByGuild(Guild guild) {
 		return findById(guild.getIdLong())
 			.orElseGet(() -> this.save(new GuildSettings(guild.getIdLong())));
 	}
+
+	/**
+	 * Writes only the global ban revision, so it does not race with changes of other settings of the guild.
+	 *
+	 * @return amount of updated rows, 0 if the guild has no row
+	 */
+	@Modifying
+	@Transactional
+	@Query(value = "UPDATE guild_settings SET global_bans_revision = ?2 WHERE guild_id = ?1", nativeQuery = true)
+	int updateGlobalBansRevision(long guildId, long revision);
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.db.entities;
+
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Immutable copy of the {@link GuildSettings} of a guild, as handed out by the {@link GuildSettingsCache}.
+ * <p>
+ * Guilds that never changed a setting have no row and share the {@link #DEFAULTS} snapshot.
+ */
+public final class GuildSettingsSnapshot {
+
+    //shared by all guilds without a row, its guild id is 0. that matches no guild, neither do its empty admin ids
+    static final GuildSettingsSnapshot DEFAULTS = new GuildSettingsSnapshot(new GuildSettings());
+
+    private final long guildId;
+    @Nullable
+    private final Long everyoneRoleId;
+    @Nullable
+    private final Long hereRoleId;
+    @Nullable
+    private final Long memberRoleId;
+    private final long[] adminRoleIds;
+    private final long[] adminUserIds;
+    @Nullable
+    private final Long reportingChannelId;
+    private final boolean globalBansEnabled;
+    @Nullable
+    private final Long globalBansRevision;
+    @Nullable
+    private final Long logChannelId;
+    private final long[] ignoredRoleIds;
+    @Nullable
+    private final Integer memberRolesRetentionDays;
+    @Nullable
+    private final Integer suspicionThreshold;
+
+    GuildSettingsSnapshot(GuildSettings settings) {
+        this.guildId = settings.getGuildId();
+        this.everyoneRoleId = settings.getEveryoneRoleId();
+        this.hereRoleId = settings.getHereRoleId();
+        this.memberRoleId = settings.getMemberRoleId();
+        //the entity replaces its id arrays on every change instead of modifying them, so they can be shared
+        this.adminRoleIds = settings.getAdminRoleIds();
+        this.adminUserIds = settings.getAdminUserIds();
+        this.reportingChannelId = settings.getReportingChannelId();
+        this.globalBansEnabled = settings.areGlobalBansEnabled();
+        this.globalBansRevision = settings.getGlobalBansRevision();
+        this.logChannelId = settings.getLogChannelId();
+        this.ignoredRoleIds = settings.getIgnoredRoleIds();
+        this.memberRolesRetentionDays = settings.getMemberRolesRetentionDays();
+        this.suspicionThreshold = settings.getSuspicionThreshold();
+    }
+
+    private GuildSettingsSnapshot(GuildSettingsSnapshot other, long globalBansRevision) {
+        this.guildId = other.guildId;
+        this.everyoneRoleId = other.everyoneRoleId;
+        this.hereRoleId = other.hereRoleId;
+        this.memberRoleId = other.memberRoleId;
+        this.adminRoleIds = other.adminRoleIds;
+        this.adminUserIds = other.adminUserIds;
+        this.reportingChannelId = other.reportingChannelId;
+        this.globalBansEnabled = other.globalBansEnabled;
+        this.globalBansRevision = globalBansRevision;
+        this.logChannelId = other.logChannelId;
+        this.ignoredRoleIds = other.ignoredRoleIds;
+        this.memberRolesRetentionDays = other.memberRolesRetentionDays;
+        this.suspicionThreshold = other.suspicionThreshold;
+    }
+
+    GuildSettingsSnapshot withGlobalBansRevision(long globalBansRevision) {
+        return new GuildSettingsSnapshot(this, globalBansRevision);
+    }
+
+    @Nullable
+    public Long getEveryoneRoleId() {
+        return everyoneRoleId;
+    }
+
+    @Nullable
+    public Long getHereRoleId() {
+        return hereRoleId;
+    }
+
+    @Nullable
+    public Long getMemberRoleId() {
+        return memberRoleId;
+    }
+
+    //sorted, do not modify
+    public long[] getAdminRoleIds() {
+        return adminRoleIds;
+    }
+
+    //sorted, do not modify
+    public long[] getAdminUserIds() {
+        return adminUserIds;
+    }
+
+    public boolean isAdminRoleId(long roleId) {
+        return LongSets.contains(adminRoleIds, roleId);
+    }
+
+    public boolean isAdminUserId(long userId) {
+        return LongSets.contains(adminUserIds, userId);
+    }
+
+    //only true if this roles id is explicitly set as admin
+    public boolean isAdminRole(Role role) {
+        return role.getGuild().getIdLong() == guildId && isAdminRoleId(role.getIdLong());
+    }
+
+    //only true if this users id is explicitly set as admin
+    public boolean isAdminUser(Member member) {
+        return member.getGuild().getIdLong() == guildId && isAdminUserId(member.getUser().getIdLong());
+    }
+
+    //returns true if the member is an admin for this guild as defined by the guild settings
+    //a member of another guild can never be an admin
+    public boolean isAdmin(Member member) {
+        if (member.getGuild().getIdLong() != guildId) return false;
+
+        for (Role r : member.getRoles()) {
+            if (isAdminRoleId(r.getIdLong())) {
+                return true;
+            }
+        }
+
+        return isAdminUserId(member.getUser().getIdLong());
+    }
+
+    @Nullable
+    public Long getReportingChannelId() {
+        return reportingChannelId;
+    }
+
+    public boolean areGlobalBansEnabled() {
+        return globalBansEnabled;
+    }
+
+    //global ban revision up to which this guild has been synced, null if it never was
+    @Nullable
+    public Long getGlobalBansRevision() {
+        return globalBansRevision;
+    }
+
+    @Nullable
+    public Long getLogChannelId() {
+        return logChannelId;
+    }
+
+    //sorted, do not modify
+    public long[] getIgnoredRoleIds() {
+        return ignoredRoleIds;
+    }
+
+    public boolean isIgnoredRoleId(long roleId) {
+        return LongSets.contains(ignoredRoleIds, roleId);
+    }
+
+    public boolean isIgnoredRole(Role role) {
+        return isIgnoredRoleId(role.getIdLong());
+    }
+
+    //null means the configured default applies
+    @Nullable
+    public Integer getMemberRolesRetentionDays() {
+        return memberRolesRetentionDays;
+    }
+
+    //null means the configured default applies
+    @Nullable
+    public Integer getSuspicionThreshold() {
+        return suspicionThreshold;
+    }
+}
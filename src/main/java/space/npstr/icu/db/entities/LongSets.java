@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.db.entities;
+
+import java.util.Arrays;
+
+/**
+ * Sets of snowflake ids stored as sorted, duplicate free long arrays, which map straight to postgres bigint[] columns.
+ * <p>
+ * Lookups are a binary search without boxing. Changes return a new array and never modify the passed one, so an array
+ * handed out once can be shared safely.
+ */
+public final class LongSets {
+
+    public static final long[] EMPTY = new long[0];
+
+    private LongSets() {}
+
+    /**
+     * @return a sorted and duplicate free copy of the passed ids
+     */
+    public static long[] of(long[] ids) {
+        if (ids.length == 0) {
+            return EMPTY;
+        }
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        int size = 1;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] != sorted[size - 1]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return size == sorted.length ? sorted : Arrays.copyOf(sorted, size);
+    }
+
+    /**
+     * @return the passed ids if they are sorted and duplicate free already, otherwise a normalized copy
+     */
+    public static long[] normalize(long[] ids) {
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i - 1] >= ids[i]) {
+                return of(ids);
+            }
+        }
+        return ids.length == 0 ? EMPTY : ids;
+    }
+
+    public static boolean contains(long[] set, long id) {
+        return Arrays.binarySearch(set, id) >= 0;
+    }
+
+    /**
+     * @return the set with the id added, or the same array if it is contained already
+     */
+    public static long[] add(long[] set, long id) {
+        int index = Arrays.binarySearch(set, id);
+        if (index >= 0) {
+            return set;
+        }
+        int insertAt = -(index + 1);
+        long[] result = new long[set.length + 1];
+        System.arraycopy(set, 0, result, 0, insertAt);
+        result[insertAt] = id;
+        System.arraycopy(set, insertAt, result, insertAt + 1, set.length - insertAt);
+        return result;
+    }
+
+    /**
+     * @return the set without the id, or the same array if it is not contained
+     */
+    public static long[] remove(long[] set, long id) {
+        int index = Arrays.binarySearch(set, id);
+        if (index < 0) {
+            return set;
+        }
+        if (set.length == 1) {
+            return EMPTY;
+        }
+        long[] result = new long[set.length - 1];
+        System.arraycopy(set, 0, result, 0, index);
+        System.arraycopy(set, index + 1, result, index, set.length - index - 1);
+        return result;
+    }
+}
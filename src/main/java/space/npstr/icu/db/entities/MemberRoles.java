@@ -21,20 +21,22 @@ import jakarta.persistence.Column;
 import jakarta.persistence.Embeddable;
 import jakarta.persistence.EmbeddedId;
 import jakarta.persistence.Entity;
+import jakarta.persistence.PreUpdate;
 import jakarta.persistence.Table;
 import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
-import java.util.Set;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 import net.dv8tion.jda.api.entities.Guild;
-import net.dv8tion.jda.api.entities.ISnowflake;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.entities.User;
+import org.hibernate.annotations.ColumnDefault;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.jspecify.annotations.Nullable;
@@ -52,12 +54,17 @@ public class MemberRoles {
     private MemberComposite id;
 
     @Column(name = "role_ids", columnDefinition = "bigint[]")
-    private Set<Long> roleIds = new HashSet<>();
+    private long[] roleIds = LongSets.EMPTY;
 
     @Nullable
     @Column(name = "nickname", columnDefinition = "text", nullable = true)
     private String nickname;
 
+    //when the member was last seen in the guild, rows of members that left long ago are dropped based on this
+    @Column(name = "last_seen", nullable = false)
+    @ColumnDefault("now()")
+    private Instant lastSeen = Instant.now();
+
     //for jpa / database wrapper
     public MemberRoles() {}
 
@@ -65,6 +72,18 @@ public class MemberRoles {
         this.id = id;
     }
 
+    @PreUpdate
+    void touch() {
+        this.lastSeen = Instant.now();
+    }
+
+    //rows written before the ids were kept sorted may be in any order, and the column is nullable. normalized when read
+    // instead of once on load, since changing the loaded field would make the row dirty, and get it written with a new
+    // last seen on every read
+    private long[] roleIds() {
+        return roleIds == null ? LongSets.EMPTY : LongSets.normalize(roleIds);
+    }
+
     public static MemberComposite key(Member member) {
         return new MemberComposite(member);
     }
@@ -77,8 +96,9 @@ public class MemberRoles {
         return this.id;
     }
 
-    public Collection<Long> getRoleIds() {
-        return Collections.unmodifiableCollection(roleIds);
+    //sorted, do not modify
+    public long[] getRoleIds() {
+        return roleIds();
     }
 
     public Collection<Role> getRoles(Function<Long, Guild> guildProvider) {
@@ -87,14 +107,19 @@ public class MemberRoles {
             log.warn("Guild provider returned a null guild for id {}, could not look up roles for user {}", id.getGuildId(), id.getUserId());
             return Collections.emptyList();
         }
-        return roleIds.stream()
-                .map(g::getRoleById)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toSet());
+        long[] ids = roleIds();
+        List<Role> roles = new ArrayList<>(ids.length);
+        for (long roleId : ids) {
+            Role role = g.getRoleById(roleId);
+            if (role != null) {
+                roles.add(role);
+            }
+        }
+        return roles;
     }
 
     public void addRoleId(long roleId) {
-        roleIds.add(roleId);
+        roleIds = LongSets.add(roleIds(), roleId);
     }
 
     public void addRole(Role role) {
@@ -111,7 +136,7 @@ public class MemberRoles {
     }
 
     public void removeRoleId(long roleId) {
-        roleIds.remove(roleId);
+        roleIds = LongSets.remove(roleIds(), roleId);
     }
 
     public void removeRole(Role role) {
@@ -124,15 +149,30 @@ public class MemberRoles {
         }
     }
 
-    public void setRoleIds(Collection<Long> roleIds) {
-        this.roleIds.clear();
-        this.roleIds.addAll(roleIds);
+    public void setRoleIds(long[] roleIds) {
+        this.roleIds = LongSets.of(roleIds);
     }
 
     public void setRoles(Collection<Role> roles) {
-        setRoleIds(roles.stream()
-            .filter(role -> !role.isManaged()) //dont touch managed roles, this is not our responsibility
-            .map(ISnowflake::getIdLong).collect(Collectors.toSet()));
+        this.roleIds = roleIdsOf(roles);
+    }
+
+    /**
+     * @return the sorted ids of the roles that we keep track of
+     */
+    public static long[] roleIdsOf(Collection<Role> roles) {
+        long[] ids = new long[roles.size()];
+        int size = 0;
+        for (Role role : roles) {
+            if (!role.isManaged()) { //dont touch managed roles, this is not our responsibility
+                ids[size++] = role.getIdLong();
+            }
+        }
+        return LongSets.of(size == ids.length ? ids : Arrays.copyOf(ids, size));
+    }
+
+    public Instant getLastSeen() {
+        return lastSeen;
     }
 
     @Nullable
@@ -144,11 +184,6 @@ public class MemberRoles {
         this.nickname = nickname;
     }
 
-    public void set(Member member) {
-        setRoles(member.getRoles());
-        setNickname(member.getNickname());
-    }
-
 
     @Embeddable
     public static class MemberComposite implements Serializable {
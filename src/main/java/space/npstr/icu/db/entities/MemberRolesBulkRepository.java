@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.db.entities;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.jspecify.annotations.Nullable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import space.npstr.icu.metrics.Histogram;
+import space.npstr.icu.metrics.MetricsSource;
+
+/**
+ * Reads and writes the roles of many members at once, bypassing the persistence context of the
+ * {@link MemberRolesRepository}. Used to snapshot whole guilds, where going through the entities would mean one
+ * transaction and a few round trips per member.
+ * <p>
+ * Batches are written as a single multi row upsert: the columns are passed as one array parameter each and unnested
+ * on the database side. Role ids are passed as array literals, since postgres can not unnest an array of arrays.
+ */
+@Repository
+public class MemberRolesBulkRepository implements MetricsSource {
+
+	private static final String UPSERT_MANY = """
+		INSERT INTO member_roles (guild_id, user_id, role_ids, nickname, last_seen)
+		SELECT ?, u, r::bigint[], n, now() FROM unnest(?::bigint[], ?::text[], ?::text[]) AS t(u, r, n)
+		ON CONFLICT (guild_id, user_id) DO UPDATE
+		SET role_ids = excluded.role_ids, nickname = excluded.nickname, last_seen = excluded.last_seen
+		""";
+
+	//distinct guild ids by skipping through the primary key index, instead of scanning all rows
+	private static final String FIND_GUILD_IDS = """
+		WITH RECURSIVE guilds AS (
+			(SELECT guild_id FROM member_roles ORDER BY guild_id LIMIT 1)
+			UNION ALL
+			SELECT (SELECT m.guild_id FROM member_roles m WHERE m.guild_id > g.guild_id ORDER BY m.guild_id LIMIT 1)
+			FROM guilds g WHERE g.guild_id IS NOT NULL
+		)
+		SELECT guild_id FROM guilds WHERE guild_id IS NOT NULL
+		""";
+
+	private final JdbcTemplate jdbcTemplate;
+	private final int batchSize;
+	private final LongAdder statements = new LongAdder();
+	private final LongAdder rowsWritten = new LongAdder();
+	private final Histogram writeTime = new Histogram();
+
+	public MemberRolesBulkRepository(JdbcTemplate jdbcTemplate, MemberRolesProperties properties) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.batchSize = Math.max(1, properties.batchSize());
+	}
+
+	public int batchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return the stored roles of all members of the guild, by user id
+	 */
+	public Map<Long, Row> findAllByGuild(long guildId) {
+		Map<Long, Row> rows = new HashMap<>();
+		jdbcTemplate.query("SELECT user_id, role_ids, nickname FROM member_roles WHERE guild_id = ?",
+			rs -> {
+				long userId = rs.getLong("user_id");
+				rows.put(userId, new Row(userId, toLongSet(rs.getArray("role_ids")), rs.getString("nickname")));
+			},
+			guildId
+		);
+		return rows;
+	}
+
+	/**
+	 * Insert or overwrite the passed rows, with one statement per batch of the configured size. A user may only appear
+	 * once in the rows, postgres refuses to upsert the same row twice in one statement.
+	 */
+	public void upsert(long guildId, List<Row> rows) {
+		for (int from = 0; from < rows.size(); from += batchSize) {
+			List<Row> batch = rows.subList(from, Math.min(from + batchSize, rows.size()));
+			long[] userIds = new long[batch.size()];
+			String[] roleIds = new String[batch.size()];
+			String[] nicknames = new String[batch.size()];
+			for (int i = 0; i < batch.size(); i++) {
+				Row row = batch.get(i);
+				userIds[i] = row.userId();
+				roleIds[i] = toArrayLiteral(row.roleIds());
+				nicknames[i] = row.nickname();
+			}
+
+			long started = System.nanoTime();
+			jdbcTemplate.update(UPSERT_MANY, ps -> {
+				Connection connection = ps.getConnection();
+				ps.setLong(1, guildId);
+				ps.setArray(2, connection.createArrayOf("bigint", userIds));
+				ps.setArray(3, connection.createArrayOf("text", roleIds));
+				ps.setArray(4, connection.createArrayOf("text", nicknames));
+			});
+			recordWrite(started, batch.size());
+		}
+	}
+
+	/**
+	 * @return ids of all guilds that have rows
+	 */
+	public List<Long> findGuildIds() {
+		return jdbcTemplate.queryForList(FIND_GUILD_IDS, Long.class);
+	}
+
+	/**
+	 * Delete up to limit rows of the guild.
+	 *
+	 * @return amount of deleted rows
+	 */
+	public int deleteByGuild(long guildId, int limit) {
+		return jdbcTemplate.update("""
+				DELETE FROM member_roles WHERE guild_id = ? AND user_id IN
+				(SELECT user_id FROM member_roles WHERE guild_id = ? ORDER BY user_id LIMIT ?)
+				""",
+			guildId, guildId, limit
+		);
+	}
+
+	/**
+	 * @return sorted ids of up to limit users of the guild that have not been seen since the cutoff, starting after
+	 * the passed user id
+	 */
+	public long[] findUserIdsLastSeenBefore(long guildId, Instant cutoff, long afterUserId, int limit) {
+		List<Long> userIds = jdbcTemplate.queryForList("""
+				SELECT user_id FROM member_roles WHERE guild_id = ? AND user_id > ? AND last_seen < ?
+				ORDER BY user_id LIMIT ?
+				""",
+			Long.class, guildId, afterUserId, Timestamp.from(cutoff), limit
+		);
+		long[] ids = new long[userIds.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = userIds.get(i);
+		}
+		return ids;
+	}
+
+	/**
+	 * @return amount of deleted rows
+	 */
+	public int deleteUsers(long guildId, long[] userIds) {
+		return jdbcTemplate.update("DELETE FROM member_roles WHERE guild_id = ? AND user_id = ANY(?)", ps -> {
+			ps.setLong(1, guildId);
+			ps.setArray(2, ps.getConnection().createArrayOf("bigint", userIds));
+		});
+	}
+
+	private void recordWrite(long startedNanos, int rows) {
+		writeTime.record(System.nanoTime() - startedNanos);
+		statements.increment();
+		rowsWritten.add(rows);
+	}
+
+	private static String toArrayLiteral(long[] ids) {
+		StringBuilder literal = new StringBuilder(ids.length * 20 + 2).append('{');
+		for (int i = 0; i < ids.length; i++) {
+			if (i > 0) {
+				literal.append(',');
+			}
+			literal.append(ids[i]);
+		}
+		return literal.append('}').toString();
+	}
+
+	@Override
+	public void writeMetrics(StringBuilder out) {
+		MetricsSource.counter(out, "icu_member_roles_bulk_statements_total", "", statements.sum());
+		MetricsSource.counter(out, "icu_member_roles_bulk_rows_total", "", rowsWritten.sum());
+		writeTime.writeTo(out, "icu_member_roles_bulk_write_seconds", "");
+	}
+
+	private static long[] toLongSet(@Nullable Array array) throws SQLException {
+		if (array == null) {
+			return LongSets.EMPTY;
+		}
+		Long[] boxed = (Long[]) array.getArray();
+		long[] ids = new long[boxed.length];
+		for (int i = 0; i < boxed.length; i++) {
+			ids[i] = boxed[i];
+		}
+		return LongSets.of(ids);
+	}
+
+	/**
+	 * @param roleIds sorted, as produced by {@link LongSets}
+	 */
+	public record Row(long userId, long[] roleIds, @Nullable String nickname) {}
+}
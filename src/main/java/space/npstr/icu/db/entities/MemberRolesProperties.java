@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.db.entities;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * @param batchSize     amount of rows written per statement batch, also the amount of pending role changes that
+ *                      triggers an early flush
+ * @param flushInterval how long role changes of members may be buffered before they are written
+ * @param restore       how the stored roles of a rejoining member are applied
+ * @param restoreDelay  how long to wait for other bots to apply their roles on join, only used by
+ *                      {@link RestoreMode#BULK}
+ * @param departedCacheSize amount of members who left a guild whose roles are kept in memory for a fast restore
+ * @param retentionDays     how long the roles of members who left are kept, unless a guild configures otherwise,
+ *                          0 to keep them forever
+ * @param compactionInterval how often rows of left guilds and rows past their retention are deleted
+ * @param leftGuildGracePeriod how long a guild has to be missing before its rows are deleted, so that guilds which
+ *                             are only unavailable for a while keep them
+ */
+@ConfigurationProperties(prefix = "app.member-roles")
+public record MemberRolesProperties(
+	@DefaultValue("1000") int batchSize,
+	@DefaultValue("1s") Duration flushInterval,
+	@DefaultValue("SPACED") RestoreMode restore,
+	@DefaultValue("3s") Duration restoreDelay,
+	@DefaultValue("100000") int departedCacheSize,
+	@DefaultValue("0") int retentionDays,
+	@DefaultValue("6h") Duration compactionInterval,
+	@DefaultValue("7d") Duration leftGuildGracePeriod
+) {
+
+	public enum RestoreMode {
+		/**
+		 * One request per role, right away. Never overwrites roles that other bots apply on join, but costs a request
+		 * per role.
+		 */
+		SPACED,
+		/**
+		 * All roles in one bulk request after the restore delay, unless the roles of the member changed since the join,
+		 * in which case this falls back to {@link #SPACED}. The nickname is restored with its own request, like in
+		 * {@link #SPACED}.
+		 */
+		BULK,
+	}
+}
@@ -33,14 +33,14 @@ public class ReportingChannelFetcher {
 
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ReportingChannelFetcher.class);
 
-    private final GuildSettingsRepository guildSettingsRepo;
+    private final GuildSettingsCache guildSettingsCache;
 
-    public ReportingChannelFetcher(GuildSettingsRepository guildSettingsRepo) {
-        this.guildSettingsRepo = guildSettingsRepo;
+    public ReportingChannelFetcher(GuildSettingsCache guildSettingsCache) {
+        this.guildSettingsCache = guildSettingsCache;
     }
 
     public Optional<TextChannel> fetchWorkingReportingChannel(Guild guild) {
-        Long reportingChannelId = guildSettingsRepo.findOrCreateByGuild(guild).getReportingChannelId();
+        Long reportingChannelId = guildSettingsCache.get(guild).getReportingChannelId();
         if (reportingChannelId == null) {
             return Optional.empty();
         }
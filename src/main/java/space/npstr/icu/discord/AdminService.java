@@ -14,31 +14,56 @@
  * You should have received a copy of the GNU Affero General Public License
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package space.npstr.icu.discord;
 
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.ApplicationInfo;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.guild.update.GuildUpdateOwnerEvent;
+import net.dv8tion.jda.api.events.role.RoleCreateEvent;
+import net.dv8tion.jda.api.events.role.RoleDeleteEvent;
+import net.dv8tion.jda.api.events.role.update.RoleUpdatePermissionsEvent;
+import net.dv8tion.jda.api.events.session.ReadyEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import net.dv8tion.jda.api.sharding.ShardManager;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Service;
-import space.npstr.icu.db.entities.GuildSettingsRepository;
+import space.npstr.icu.db.entities.GuildSettingsCache;
+import space.npstr.icu.db.entities.GuildSettingsSnapshot;
+import space.npstr.icu.db.entities.LongSets;
 
+/**
+ * Answers admin checks from a precomputed index per guild, without blocking and without database access.
+ * <p>
+ * An index is built on the first check in a guild and thrown away when the roles with admin permissions or the owner of
+ * the guild change. It also remembers the settings snapshot it was built from, so a settings change makes it stale.
+ */
 @Service
-public class AdminService {
+public class AdminService extends ListenerAdapter {
 
-	private final GuildSettingsRepository guildSettingsRepo;
+	private static final Object APP_INFO_KEY = new Object();
+
+	private final GuildSettingsCache guildSettingsCache;
 
 	private final AsyncLoadingCache<Object, ApplicationInfo> applicationInfoCache;
 
-	public AdminService(GuildSettingsRepository guildSettingsRepo, ObjectProvider<ShardManager> shardManager) {
-		this.guildSettingsRepo = guildSettingsRepo;
+	private final ConcurrentHashMap<Long, AdminIndex> adminIndexes = new ConcurrentHashMap<>();
+	//bumped on every invalidation, so an index built concurrently with one is not kept around
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public AdminService(GuildSettingsCache guildSettingsCache, ObjectProvider<ShardManager> shardManager) {
+		this.guildSettingsCache = guildSettingsCache;
 
 		this.applicationInfoCache = Caffeine.newBuilder()
 			.refreshAfterWrite(1, TimeUnit.HOURS)
@@ -51,15 +76,114 @@ public class AdminService {
 	}
 
 	public boolean isBotOwner(User user) {
-		ApplicationInfo appInfo = applicationInfoCache.get("foo").join();
+		ApplicationInfo appInfo = applicationInfoCache.get(APP_INFO_KEY).join();
 		return appInfo != null
 			&& appInfo.getOwner().getIdLong() == user.getIdLong();
 	}
 
 	public boolean isAdmin(Member member) {
-		return isBotOwner(member.getUser())
-			|| member.isOwner()
-			|| member.hasPermission(Permission.ADMINISTRATOR)
-			|| guildSettingsRepo.findOrCreateByGuild(member.getGuild()).isAdmin(member);
+		long userId = member.getIdLong();
+		AdminIndex index = adminIndex(member.getGuild());
+		if (index.everyoneIsAdmin() || index.isAdminUser(userId) || isBotOwnerNow(userId)) {
+			return true;
+		}
+		for (Role role : member.getUnsortedRoles()) {
+			if (index.isAdminRole(role.getIdLong())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the application info is loaded on ready, until then, or if loading it failed, the bot owner is just not recognized
+	// as an admin
+	private boolean isBotOwnerNow(long userId) {
+		CompletableFuture<ApplicationInfo> appInfoFuture = applicationInfoCache.get(APP_INFO_KEY);
+		if (!appInfoFuture.isDone() || appInfoFuture.isCompletedExceptionally()) {
+			return false;
+		}
+		ApplicationInfo appInfo = appInfoFuture.join();
+		return appInfo != null && appInfo.getOwner().getIdLong() == userId;
+	}
+
+	private AdminIndex adminIndex(Guild guild) {
+		GuildSettingsSnapshot settings = guildSettingsCache.get(guild);
+		AdminIndex index = adminIndexes.get(guild.getIdLong());
+		if (index != null && index.settings() == settings) {
+			return index;
+		}
+
+		long invalidationsBefore = invalidations.get();
+		AdminIndex built = AdminIndex.build(guild, settings);
+		adminIndexes.put(guild.getIdLong(), built);
+		if (invalidations.get() != invalidationsBefore) {
+			adminIndexes.remove(guild.getIdLong(), built);
+		}
+		return built;
+	}
+
+	private void invalidate(Guild guild) {
+		invalidations.incrementAndGet();
+		adminIndexes.remove(guild.getIdLong());
+	}
+
+	@Override
+	public void onReady(ReadyEvent event) {
+		applicationInfoCache.get(APP_INFO_KEY);
+	}
+
+	@Override
+	public void onGuildLeave(GuildLeaveEvent event) {
+		invalidate(event.getGuild());
+	}
+
+	@Override
+	public void onGuildUpdateOwner(GuildUpdateOwnerEvent event) {
+		invalidate(event.getGuild());
+	}
+
+	@Override
+	public void onRoleCreate(RoleCreateEvent event) {
+		invalidate(event.getGuild());
+	}
+
+	@Override
+	public void onRoleDelete(RoleDeleteEvent event) {
+		invalidate(event.getGuild());
+	}
+
+	@Override
+	public void onRoleUpdatePermissions(RoleUpdatePermissionsEvent event) {
+		invalidate(event.getGuild());
+	}
+
+	/**
+	 * @param adminUserIds the owner of the guild and the users set as admins, sorted
+	 * @param adminRoleIds roles set as admins and roles with the administrator permission, sorted
+	 * @param everyoneIsAdmin the public role has the administrator permission
+	 */
+	private record AdminIndex(GuildSettingsSnapshot settings, long[] adminUserIds, long[] adminRoleIds, boolean everyoneIsAdmin) {
+
+		private static AdminIndex build(Guild guild, GuildSettingsSnapshot settings) {
+			long[] adminUserIds = LongSets.add(settings.getAdminUserIds(), guild.getOwnerIdLong());
+
+			long[] adminRoleIds = settings.getAdminRoleIds();
+			for (Role role : guild.getRoles()) {
+				if (role.hasPermission(Permission.ADMINISTRATOR)) {
+					adminRoleIds = LongSets.add(adminRoleIds, role.getIdLong());
+				}
+			}
+			boolean everyoneIsAdmin = guild.getPublicRole().hasPermission(Permission.ADMINISTRATOR);
+
+			return new AdminIndex(settings, adminUserIds, adminRoleIds, everyoneIsAdmin);
+		}
+
+		private boolean isAdminUser(long userId) {
+			return LongSets.contains(adminUserIds, userId);
+		}
+
+		private boolean isAdminRole(long roleId) {
+			return LongSets.contains(adminRoleIds, roleId);
+		}
 	}
 }
@@ -0,0 +1,645 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.discord;
+
+import com.github.benmanes.caffeine.cache.Interner;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.UserSnowflake;
+import net.dv8tion.jda.api.events.guild.GuildAvailableEvent;
+import net.dv8tion.jda.api.events.guild.GuildBanEvent;
+import net.dv8tion.jda.api.events.guild.GuildJoinEvent;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.guild.GuildReadyEvent;
+import net.dv8tion.jda.api.events.guild.GuildUnbanEvent;
+import net.dv8tion.jda.api.exceptions.ErrorResponseException;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.requests.ErrorResponse;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Service;
+import space.npstr.icu.Launcher;
+import space.npstr.icu.db.entities.LongSets;
+import space.npstr.icu.db.entities.MemberRoles.MemberComposite;
+import space.npstr.icu.metrics.MetricsSource;
+
+/**
+ * Keeps a copy of the ban list of every guild where the bot can see it, so checking whether a user is banned somewhere,
+ * and for what reason, does not need a request to Discord.
+ * <p>
+ * The ban list of a guild is downloaded once when it becomes available, and then kept up to date from the ban events,
+ * which are applied directly on the event thread. Since events can be missed, for example while a shard is
+ * disconnected, all ban lists are downloaded again once in a while. Ban events do not carry the reason, it is fetched
+ * when it is first asked for, once per ban and shared by everyone asking for it. Most reasons are never asked for.
+ * <p>
+ * A guild that becomes unavailable keeps its ban list, and downloads it again once it is back, since its events are
+ * missed in the meantime.
+ * <p>
+ * A guild that is not mirrored, because its ban list has not been downloaded yet or the bot may not see it, has to be
+ * checked through the Discord API as before.
+ * <p>
+ * All mirrored ban lists are also indexed by user, so finding the guilds a user is banned in is a single lookup.
+ */
+@Service
+public class BanMirror extends ListenerAdapter implements MetricsSource, DisposableBean {
+
+	private static final Logger log = LoggerFactory.getLogger(BanMirror.class);
+
+	//the same few reasons, like the one of global bans, show up in thousands of guilds
+	private static final Interner<String> REASONS = Interner.newWeakInterner();
+
+	private final ObjectProvider<ShardManager> shardManager;
+	private final ConcurrentHashMap<Long, GuildBans> guildBans = new ConcurrentHashMap<>();
+	//inverted index of all mirrored ban lists: user id -> sorted ids of the guilds the user is banned in
+	private final ConcurrentHashMap<Long, long[]> guildsByUser = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<MemberComposite, CompletableFuture<Optional<String>>> pendingReasons = new ConcurrentHashMap<>();
+
+	private final ConcurrentLinkedQueue<Long> seedQueue = new ConcurrentLinkedQueue<>();
+	private final Set<Long> queuedSeeds = ConcurrentHashMap.newKeySet();
+	private final Semaphore seedPermits;
+	private final ScheduledExecutorService scheduler;
+
+	private final LongAdder seeded = new LongAdder();
+	private final LongAdder seedsFailed = new LongAdder();
+	private final LongAdder bansApplied = new LongAdder();
+	private final LongAdder unbansApplied = new LongAdder();
+	private final LongAdder reasonsFetched = new LongAdder();
+
+	public BanMirror(ObjectProvider<ShardManager> shardManager, BanMirrorProperties properties) {
+		this.shardManager = shardManager;
+		this.seedPermits = new Semaphore(Math.max(1, properties.seedConcurrency()));
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+			Thread.ofPlatform().name("ban-mirror-reconciliation").daemon().factory()
+		);
+		long interval = Math.max(1, properties.reconciliationInterval().toMillis());
+		this.scheduler.scheduleWithFixedDelay(this::reconcile, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return true if the ban list of the guild is mirrored, and can be checked with the other methods of this class
+	 */
+	public boolean isMirrored(Guild guild) {
+		GuildBans bans = guildBans.get(guild.getIdLong());
+		return bans != null && bans.snapshot != null;
+	}
+
+	/**
+	 * @return true if the user is banned in a mirrored guild. Always false for guilds that are not mirrored.
+	 */
+	public boolean isBanned(Guild guild, long userId) {
+		Snapshot snapshot = snapshot(guild);
+		return snapshot != null && snapshot.contains(userId);
+	}
+
+	/**
+	 * @return the amount of users banned in a mirrored guild, 0 for guilds that are not mirrored
+	 */
+	public int countBans(Guild guild) {
+		Snapshot snapshot = snapshot(guild);
+		return snapshot != null ? snapshot.size() : 0;
+	}
+
+	/**
+	 * @return the sorted ids of the mirrored guilds the user is banned in. Must not be modified.
+	 */
+	public long[] getBanningGuildIds(long userId) {
+		return guildsByUser.getOrDefault(userId, LongSets.EMPTY);
+	}
+
+	/**
+	 * @return the reason of a ban in a mirrored guild. Already completed, unless the ban came in through an event and
+	 * its reason is still being fetched. Never blocks, and never completes exceptionally. Empty if the user is not
+	 * banned, the ban has no reason, the reason could not be fetched, or the guild is not mirrored.
+	 */
+	public CompletableFuture<Optional<String>> getBanReason(Guild guild, long userId) {
+		GuildBans bans = guildBans.get(guild.getIdLong());
+		if (bans == null) {
+			return CompletableFuture.completedFuture(Optional.empty());
+		}
+		Snapshot snapshot = bans.snapshot;
+		if (snapshot == null || !snapshot.contains(userId)) {
+			return CompletableFuture.completedFuture(Optional.empty());
+		}
+		if (bans.isReasonKnown(userId)) {
+			return CompletableFuture.completedFuture(Optional.ofNullable(snapshot.reason(userId)));
+		}
+		return fetchReason(guild, bans, userId);
+	}
+
+	private CompletableFuture<Optional<String>> fetchReason(Guild guild, GuildBans bans, long userId) {
+		MemberComposite key = new MemberComposite(guild.getIdLong(), userId);
+		CompletableFuture<Optional<String>> reason = new CompletableFuture<>();
+		CompletableFuture<Optional<String>> pending = pendingReasons.putIfAbsent(key, reason);
+		if (pending != null) {
+			return pending;
+		}
+		guild.retrieveBan(UserSnowflake.fromId(userId)).submit()
+			.thenApply(ban -> Optional.ofNullable(ban.getReason()))
+			.whenComplete((fetched, t) -> {
+				if (t == null) {
+					reasonsFetched.increment();
+					bans.updateReason(userId, fetched.orElse(null));
+				} else {
+					//an unknown ban is on its way out through an unban event, anything else is asked again next time
+					Throwable realCause = Launcher.unwrap(t);
+					if (!(realCause instanceof ErrorResponseException ere) || ere.getErrorResponse() != ErrorResponse.UNKNOWN_BAN) {
+						log.warn("Failed to fetch the reason of the ban of user {} in guild {}", userId, guild, realCause);
+					}
+				}
+				pendingReasons.remove(key, reason);
+				reason.complete(t == null ? fetched : Optional.empty());
+			});
+		return reason;
+	}
+
+	@Nullable
+	private Snapshot snapshot(Guild guild) {
+		GuildBans bans = guildBans.get(guild.getIdLong());
+		return bans != null ? bans.snapshot : null;
+	}
+
+	@Override
+	public void onGuildReady(GuildReadyEvent event) {
+		requestSeed(event.getGuild().getIdLong());
+	}
+
+	@Override
+	public void onGuildAvailable(GuildAvailableEvent event) {
+		requestSeed(event.getGuild().getIdLong());
+	}
+
+	@Override
+	public void onGuildJoin(GuildJoinEvent event) {
+		requestSeed(event.getGuild().getIdLong());
+	}
+
+	@Override
+	public void onGuildLeave(GuildLeaveEvent event) {
+		drop(event.getGuild().getIdLong());
+	}
+
+	@Override
+	public void onGuildBan(GuildBanEvent event) {
+		GuildBans bans = guildBans.get(event.getGuild().getIdLong());
+		if (bans == null) {
+			return;
+		}
+		bans.ban(event.getUser().getIdLong(), null);
+		bansApplied.increment();
+	}
+
+	@Override
+	public void onGuildUnban(GuildUnbanEvent event) {
+		GuildBans bans = guildBans.get(event.getGuild().getIdLong());
+		if (bans == null) {
+			return;
+		}
+		bans.unban(event.getUser().getIdLong());
+		unbansApplied.increment();
+	}
+
+	private void reconcile() {
+		try {
+			ShardManager sm = shardManager.getObject();
+			sm.getGuildCache().forEach(guild -> requestSeed(guild.getIdLong()));
+			//guilds that were left while their shard was disconnected
+			for (long guildId : guildBans.keySet()) {
+				if (sm.getGuildById(guildId) == null && !Launcher.isUnavailable(sm, guildId)) {
+					drop(guildId);
+				}
+			}
+		} catch (Exception e) {
+			log.error("Failed to schedule the reconciliation of ban lists", e);
+		}
+	}
+
+	private void requestSeed(long guildId) {
+		if (queuedSeeds.add(guildId)) {
+			seedQueue.add(guildId);
+			drainSeeds();
+		}
+	}
+
+	private void drainSeeds() {
+		while (seedPermits.tryAcquire()) {
+			Long guildId = seedQueue.poll();
+			if (guildId == null) {
+				seedPermits.release();
+				//something may have been queued while the permit was held
+				if (seedQueue.isEmpty()) {
+					return;
+				}
+				continue;
+			}
+			queuedSeeds.remove(guildId);
+			CompletableFuture<?> seed;
+			try {
+				seed = seed(guildId);
+			} catch (Exception e) {
+				seed = CompletableFuture.failedFuture(e);
+			}
+			//skipped guilds complete right away, looping on instead of draining from the callback keeps the stack flat
+			// when thousands of them come one after another
+			if (seed.isDone()) {
+				seedPermits.release();
+				continue;
+			}
+			seed.whenComplete((__, ___) -> {
+				seedPermits.release();
+				drainSeeds();
+			});
+		}
+	}
+
+	private CompletableFuture<?> seed(long guildId) {
+		ShardManager sm = shardManager.getObject();
+		Guild guild = sm.getGuildById(guildId);
+		if (guild == null && Launcher.isUnavailable(sm, guildId)) {
+			//seeded again once it is available
+			return CompletableFuture.completedFuture(null);
+		}
+		if (guild == null || !guild.getSelfMember().hasPermission(Permission.BAN_MEMBERS)) {
+			drop(guildId);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		GuildBans bans = guildBans.computeIfAbsent(guildId, __ -> new GuildBans(guildId));
+		bans.startSeed();
+		List<Guild.Ban> downloaded = new ArrayList<>();
+		return guild.retrieveBanList().limit(1000)
+			.forEachAsync(ban -> {
+				downloaded.add(ban);
+				return true;
+			})
+			.whenComplete((__, t) -> {
+				if (t != null) {
+					bans.abortSeed();
+					seedsFailed.increment();
+					log.warn("Failed to download the ban list of guild {}", guild, t);
+					return;
+				}
+				downloaded.sort(Comparator.comparingLong(ban -> ban.getUser().getIdLong()));
+				long[] userIds = new long[downloaded.size()];
+				@Nullable String[] reasons = new String[downloaded.size()];
+				for (int i = 0; i < userIds.length; i++) {
+					Guild.Ban ban = downloaded.get(i);
+					userIds[i] = ban.getUser().getIdLong();
+					reasons[i] = intern(ban.getReason());
+				}
+				bans.install(new Snapshot(userIds, reasons));
+				seeded.increment();
+			});
+	}
+
+	private void drop(long guildId) {
+		GuildBans bans = guildBans.remove(guildId);
+		if (bans != null) {
+			bans.drop();
+		}
+	}
+
+	private void index(long userId, long guildId) {
+		guildsByUser.compute(userId, (__, guildIds) -> LongSets.add(guildIds != null ? guildIds : LongSets.EMPTY, guildId));
+	}
+
+	private void unindex(long userId, long guildId) {
+		guildsByUser.computeIfPresent(userId, (__, guildIds) -> {
+			long[] remaining = LongSets.remove(guildIds, guildId);
+			return remaining.length > 0 ? remaining : null;
+		});
+	}
+
+	@Nullable
+	private static String intern(@Nullable String reason) {
+		return reason != null ? REASONS.intern(reason) : null;
+	}
+
+	@Override
+	public void destroy() {
+		scheduler.shutdownNow();
+	}
+
+	@Override
+	public void writeMetrics(StringBuilder out) {
+		long guilds = 0;
+		long bans = 0;
+		for (GuildBans guild : guildBans.values()) {
+			Snapshot snapshot = guild.snapshot;
+			if (snapshot != null) {
+				guilds++;
+				bans += snapshot.size();
+			}
+		}
+		MetricsSource.gauge(out, "icu_ban_mirror_guilds", "", guilds);
+		MetricsSource.gauge(out, "icu_ban_mirror_bans", "", bans);
+		MetricsSource.gauge(out, "icu_ban_mirror_banned_users", "", guildsByUser.size());
+		MetricsSource.gauge(out, "icu_ban_mirror_seed_queue", "", queuedSeeds.size());
+		MetricsSource.counter(out, "icu_ban_mirror_seeds_total", "result=\"success\"", seeded.sum());
+		MetricsSource.counter(out, "icu_ban_mirror_seeds_total", "result=\"failure\"", seedsFailed.sum());
+		MetricsSource.counter(out, "icu_ban_mirror_events_total", "type=\"ban\"", bansApplied.sum());
+		MetricsSource.counter(out, "icu_ban_mirror_events_total", "type=\"unban\"", unbansApplied.sum());
+		MetricsSource.counter(out, "icu_ban_mirror_reasons_fetched_total", "", reasonsFetched.sum());
+	}
+
+	/**
+	 * The bans of a guild as of its last download, sorted by user id with their reasons at the same index, plus the bans
+	 * and unbans since. Never modified once published.
+	 * <p>
+	 * Events only copy the small delta: bans, or changed reasons, in added, and unbans of downloaded bans in removed.
+	 * Once the delta grows past {@link #MAX_DELTA} entries, it is merged into the downloaded arrays, so the full copy
+	 * is paid once per that many events.
+	 */
+	private record Snapshot(long[] userIds, @Nullable String[] reasons,
+							long[] addedIds, @Nullable String[] addedReasons, long[] removedIds, int size) {
+
+		private static final int MAX_DELTA = 128;
+
+		private Snapshot(long[] userIds, @Nullable String[] reasons) {
+			this(userIds, reasons, LongSets.EMPTY, new String[0], LongSets.EMPTY, userIds.length);
+		}
+
+		private boolean contains(long userId) {
+			return LongSets.contains(addedIds, userId)
+				|| (LongSets.contains(userIds, userId) && !LongSets.contains(removedIds, userId));
+		}
+
+		@Nullable
+		private String reason(long userId) {
+			int added = Arrays.binarySearch(addedIds, userId);
+			if (added >= 0) {
+				return addedReasons[added];
+			}
+			int index = Arrays.binarySearch(userIds, userId);
+			return index >= 0 && !LongSets.contains(removedIds, userId) ? reasons[index] : null;
+		}
+
+		private Snapshot with(long userId, @Nullable String reason) {
+			int added = Arrays.binarySearch(addedIds, userId);
+			if (added >= 0) {
+				if (reason == null || reason.equals(addedReasons[added])) {
+					return this;
+				}
+				@Nullable String[] newAddedReasons = addedReasons.clone();
+				newAddedReasons[added] = intern(reason);
+				return new Snapshot(userIds, reasons, addedIds, newAddedReasons, removedIds, size);
+			}
+			int index = Arrays.binarySearch(userIds, userId);
+			boolean removed = LongSets.contains(removedIds, userId);
+			if (index >= 0 && !removed && (reason == null || reason.equals(reasons[index]))) {
+				return this;
+			}
+			if (index >= 0 && removed && Objects.equals(reason, reasons[index])) {
+				//banned again for the same reason, so the downloaded ban applies again
+				return new Snapshot(userIds, reasons, addedIds, addedReasons, LongSets.remove(removedIds, userId), size + 1)
+					.mergeIfLarge();
+			}
+			boolean banned = index >= 0 && !removed;
+			int insert = -added - 1;
+			long[] newAddedIds = new long[addedIds.length + 1];
+			@Nullable String[] newAddedReasons = new String[addedReasons.length + 1];
+			System.arraycopy(addedIds, 0, newAddedIds, 0, insert);
+			System.arraycopy(addedReasons, 0, newAddedReasons, 0, insert);
+			newAddedIds[insert] = userId;
+			newAddedReasons[insert] = intern(reason);
+			System.arraycopy(addedIds, insert, newAddedIds, insert + 1, addedIds.length - insert);
+			System.arraycopy(addedReasons, insert, newAddedReasons, insert + 1, addedReasons.length - insert);
+			return new Snapshot(userIds, reasons, newAddedIds, newAddedReasons, LongSets.remove(removedIds, userId),
+				banned ? size : size + 1).mergeIfLarge();
+		}
+
+		private Snapshot without(long userId) {
+			if (!contains(userId)) {
+				return this;
+			}
+			long[] newAddedIds = addedIds;
+			@Nullable String[] newAddedReasons = addedReasons;
+			int added = Arrays.binarySearch(addedIds, userId);
+			if (added >= 0) {
+				newAddedIds = LongSets.remove(addedIds, userId);
+				newAddedReasons = new String[addedReasons.length - 1];
+				System.arraycopy(addedReasons, 0, newAddedReasons, 0, added);
+				System.arraycopy(addedReasons, added + 1, newAddedReasons, added, addedReasons.length - added - 1);
+			}
+			//a downloaded ban whose reason changed since is in both, so it has to be removed from the downloaded ones too
+			long[] newRemovedIds = LongSets.contains(userIds, userId) ? LongSets.add(removedIds, userId) : removedIds;
+			return new Snapshot(userIds, reasons, newAddedIds, newAddedReasons, newRemovedIds, size - 1).mergeIfLarge();
+		}
+
+		private Snapshot mergeIfLarge() {
+			return addedIds.length + removedIds.length > MAX_DELTA ? merged() : this;
+		}
+
+		/**
+		 * @return the same bans, with the delta merged into the sorted arrays
+		 */
+		private Snapshot merged() {
+			if (addedIds.length == 0 && removedIds.length == 0) {
+				return this;
+			}
+			long[] mergedIds = new long[size];
+			@Nullable String[] mergedReasons = new String[size];
+			int i = 0;
+			int j = 0;
+			int k = 0;
+			while (i < userIds.length || j < addedIds.length) {
+				if (j >= addedIds.length || (i < userIds.length && userIds[i] < addedIds[j])) {
+					if (!LongSets.contains(removedIds, userIds[i])) {
+						mergedIds[k] = userIds[i];
+						mergedReasons[k++] = reasons[i];
+					}
+					i++;
+				} else {
+					if (i < userIds.length && userIds[i] == addedIds[j]) {
+						i++; //replaced by the added one
+					}
+					mergedIds[k] = addedIds[j];
+					mergedReasons[k++] = addedReasons[j++];
+				}
+			}
+			return new Snapshot(mergedIds, mergedReasons);
+		}
+	}
+
+	/**
+	 * The mirrored ban list of a guild. Readers only look at the published snapshot, writers replace it under the lock,
+	 * and keep the index by user in line with it. Events that arrive while the ban list is being downloaded are
+	 * remembered, and applied again on top of it, since the download may or may not have seen them.
+	 */
+	private final class GuildBans {
+
+		private final long guildId;
+		@Nullable
+		private volatile Snapshot snapshot;
+		//bans that came in through an event, their reason is fetched when first asked for. written under the lock
+		private final Set<Long> unknownReasons = ConcurrentHashMap.newKeySet();
+		@Nullable
+		private List<Change> changesDuringSeed;
+		private boolean dropped;
+
+		private GuildBans(long guildId) {
+			this.guildId = guildId;
+		}
+
+		private boolean isReasonKnown(long userId) {
+			return !unknownReasons.contains(userId);
+		}
+
+		private synchronized void startSeed() {
+			changesDuringSeed = new ArrayList<>();
+		}
+
+		private synchronized void abortSeed() {
+			changesDuringSeed = null;
+		}
+
+		private synchronized void install(Snapshot seeded) {
+			Snapshot result = seeded;
+			List<Change> changes = changesDuringSeed;
+			if (changes != null) {
+				for (Change change : changes) {
+					result = change.banned() ? result.with(change.userId(), change.reason()) : result.without(change.userId());
+				}
+			}
+			changesDuringSeed = null;
+			if (!dropped) {
+				Snapshot merged = result.merged();
+				unknownReasons.removeIf(userId -> !merged.contains(userId));
+				replace(merged);
+			}
+		}
+
+		private synchronized void drop() {
+			dropped = true;
+			changesDuringSeed = null;
+			Snapshot current = snapshot;
+			if (current != null) {
+				for (long userId : current.merged().userIds) {
+					unindex(userId, guildId);
+				}
+			}
+			snapshot = null;
+			unknownReasons.clear();
+		}
+
+		private synchronized void ban(long userId, @Nullable String reason) {
+			record(new Change(userId, true, reason));
+			Snapshot current = snapshot;
+			if (current != null && !dropped) {
+				if (reason == null) {
+					unknownReasons.add(userId);
+				} else {
+					unknownReasons.remove(userId);
+				}
+				if (!current.contains(userId)) {
+					index(userId, guildId);
+				}
+				snapshot = current.with(userId, reason);
+			}
+		}
+
+		//the reason arrives a while after the ban, the user may have been unbanned in the meantime
+		private synchronized void updateReason(long userId, @Nullable String reason) {
+			Snapshot current = snapshot;
+			boolean banned = current != null ? current.contains(userId) : isBannedDuringSeed(userId);
+			if (!banned) {
+				return;
+			}
+			unknownReasons.remove(userId);
+			if (reason != null) {
+				ban(userId, reason);
+			}
+		}
+
+		//whether the latest change of the user seen while seeding is a ban, the download may or may not contain it
+		private boolean isBannedDuringSeed(long userId) {
+			List<Change> changes = changesDuringSeed;
+			if (changes == null) {
+				return false;
+			}
+			for (int i = changes.size() - 1; i >= 0; i--) {
+				Change change = changes.get(i);
+				if (change.userId() == userId) {
+					return change.banned();
+				}
+			}
+			return false;
+		}
+
+		private synchronized void unban(long userId) {
+			record(new Change(userId, false, null));
+			Snapshot current = snapshot;
+			if (current != null && !dropped) {
+				unknownReasons.remove(userId);
+				if (current.contains(userId)) {
+					unindex(userId, guildId);
+				}
+				snapshot = current.without(userId);
+			}
+		}
+
+		//walks the old and new sorted user ids side by side to update the index with the difference
+		private void replace(Snapshot next) {
+			Snapshot current = snapshot;
+			long[] before = current != null ? current.merged().userIds : LongSets.EMPTY;
+			long[] after = next.userIds;
+			if (before != after) {
+				int i = 0;
+				int j = 0;
+				while (i < before.length || j < after.length) {
+					if (j >= after.length || (i < before.length && before[i] < after[j])) {
+						unindex(before[i++], guildId);
+					} else if (i >= before.length || after[j] < before[i]) {
+						index(after[j++], guildId);
+					} else {
+						i++;
+						j++;
+					}
+				}
+			}
+			snapshot = next;
+		}
+
+		private void record(Change change) {
+			List<Change> changes = changesDuringSeed;
+			if (changes != null) {
+				changes.add(change);
+			}
+		}
+	}
+
+	private record Change(long userId, boolean banned, @Nullable String reason) {}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.discord;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * @param seedConcurrency        amount of guild ban lists that are downloaded at the same time
+ * @param reconciliationInterval how often the ban lists of all guilds are downloaded again, to catch anything the ban
+ *                               events missed, for example while a shard was disconnected
+ */
+@ConfigurationProperties(prefix = "app.ban-mirror")
+public record BanMirrorProperties(
+	@DefaultValue("4") int seedConcurrency,
+	@DefaultValue("12h") Duration reconciliationInterval
+) {}
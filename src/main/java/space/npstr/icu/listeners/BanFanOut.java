@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.db.entities.GuildSettingsCache;
+import space.npstr.icu.db.entities.MemberRoles.MemberComposite;
+import space.npstr.icu.db.entities.ReportingChannelFetcher;
+import space.npstr.icu.metrics.MetricsSource;
+
+/**
+ * Tells guilds about their members being banned in other guilds. All bans of a user within the notice window end up in
+ * a single notice per guild, which is edited as more bans come in, instead of a new message for each of them.
+ * <p>
+ * Changes to a notice are sent after the flush delay, and never while a request for it is still underway, so a burst
+ * of bans costs one message and a few edits per guild. The reporting channel is looked up once per notice.
+ */
+@Component
+public class BanFanOut implements MetricsSource, DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(BanFanOut.class);
+
+    private final GuildSettingsCache guildSettingsCache;
+    private final ReportingChannelFetcher reportingChannelFetcher;
+    private final ObjectProvider<ShardManager> shardManager;
+    private final long flushDelayMillis;
+    //keyed by the notified guild and the banned user. notices are changed in place, so they expire by their first ban.
+    private final Cache<MemberComposite, Notice> notices;
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder bans = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder edited = new LongAdder();
+
+    public BanFanOut(GuildSettingsCache guildSettingsCache, ReportingChannelFetcher reportingChannelFetcher,
+                     ObjectProvider<ShardManager> shardManager, ReportProperties properties) {
+        this.guildSettingsCache = guildSettingsCache;
+        this.reportingChannelFetcher = reportingChannelFetcher;
+        this.shardManager = shardManager;
+        this.flushDelayMillis = properties.flushDelay().toMillis();
+        this.notices = Caffeine.newBuilder()
+            .expireAfterWrite(properties.banNoticeWindow())
+            .maximumSize(100_000)
+            .build();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("ban-fan-out").daemon().factory()
+        );
+    }
+
+    /**
+     * Notify the other guilds of the user about the ban.
+     */
+    public void banned(Guild bannedGuild, User user, String reason) {
+        String line = bannedGuild.getName() + " with reason: " + reason;
+        for (Guild guild : user.getMutualGuilds()) {
+            //dont notify guild where this user was just banned
+            if (guild.getIdLong() == bannedGuild.getIdLong()) {
+                continue;
+            }
+            //guilds without a reporting channel do not need a notice
+            if (guildSettingsCache.get(guild).getReportingChannelId() == null) {
+                continue;
+            }
+            bans.increment();
+            Notice notice = notices.get(new MemberComposite(guild.getIdLong(), user.getIdLong()),
+                __ -> new Notice(guild.getIdLong(), user));
+            if (notice.add(line)) {
+                scheduleFlush(notice);
+            }
+        }
+    }
+
+    private void scheduleFlush(Notice notice) {
+        scheduler.schedule(() -> flush(notice), flushDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(Notice notice) {
+        try {
+            String content;
+            long channelId;
+            long messageId;
+            synchronized (notice) {
+                notice.flushScheduled = false;
+                if (!notice.dirty) {
+                    return;
+                }
+                notice.dirty = false;
+                notice.inFlight = true;
+                content = notice.render();
+                channelId = notice.channelId;
+                messageId = notice.messageId;
+            }
+
+            Guild guild = shardManager.getObject().getGuildById(notice.guildId);
+            if (guild == null) {
+                done(notice, 0);
+                return;
+            }
+            if (messageId == 0) {
+                Optional<TextChannel> reportingChannel = reportingChannelFetcher.fetchWorkingReportingChannel(guild);
+                if (reportingChannel.isEmpty()) {
+                    done(notice, 0);
+                    return;
+                }
+                TextChannel channel = reportingChannel.get();
+                notice.channelId = channel.getIdLong();
+                channel.sendMessage(content).queue(
+                    message -> {
+                        sent.increment();
+                        done(notice, message.getIdLong());
+                    },
+                    t -> done(notice, 0)
+                );
+            } else {
+                TextChannel channel = guild.getTextChannelById(channelId);
+                if (channel == null || !channel.canTalk()) {
+                    done(notice, messageId);
+                    return;
+                }
+                channel.editMessageById(messageId, content).queue(
+                    __ -> {
+                        edited.increment();
+                        done(notice, messageId);
+                    },
+                    t -> done(notice, messageId)
+                );
+            }
+        } catch (Exception e) {
+            log.error("Failed to send the ban notice for user {} to guild {}", notice.userId, notice.guildId, e);
+            done(notice, notice.messageId);
+        }
+    }
+
+    //a request for the notice finished, send what changed in the meantime
+    private void done(Notice notice, long messageId) {
+        boolean reschedule;
+        synchronized (notice) {
+            notice.inFlight = false;
+            notice.messageId = messageId;
+            reschedule = notice.dirty && !notice.flushScheduled;
+            if (reschedule) {
+                notice.flushScheduled = true;
+            }
+        }
+        if (reschedule) {
+            scheduleFlush(notice);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        MetricsSource.counter(out, "icu_ban_notices_bans_total", "", bans.sum());
+        MetricsSource.counter(out, "icu_ban_notices_requests_total", "kind=\"send\"", sent.sum());
+        MetricsSource.counter(out, "icu_ban_notices_requests_total", "kind=\"edit\"", edited.sum());
+    }
+
+    private static final class Notice {
+
+        private final long guildId;
+        private final long userId;
+        private final String user;
+        private final long since = System.currentTimeMillis();
+        private final List<String> bans = new ArrayList<>();
+        private volatile long channelId;
+        private volatile long messageId;
+        //guarded by this
+        private boolean dirty;
+        private boolean flushScheduled;
+        private boolean inFlight;
+
+        private Notice(long guildId, User user) {
+            this.guildId = guildId;
+            this.userId = user.getIdLong();
+            this.user = "Member " + user.getAsMention() + " (" + user + "):\n";
+        }
+
+        /**
+         * @return true if a flush needs to be scheduled
+         */
+        private synchronized boolean add(String ban) {
+            bans.add(ban);
+            dirty = true;
+            if (flushScheduled || inFlight) {
+                return false;
+            }
+            flushScheduled = true;
+            return true;
+        }
+
+        private synchronized String render() {
+            if (bans.size() == 1) {
+                return user + "Banned just now in " + bans.getFirst();
+            }
+            long minutes = Math.max(1, (System.currentTimeMillis() - since) / 60_000);
+            StringBuilder out = new StringBuilder(user)
+                .append("Banned in ").append(bans.size()).append(" guilds within the last ").append(minutes).append(" minutes:");
+            for (int i = 0; i < bans.size(); i++) {
+                String line = "\n- " + bans.get(i);
+                String more = "\n...and " + (bans.size() - i) + " more";
+                if (out.length() + line.length() + more.length() > Message.MAX_CONTENT_LENGTH) {
+                    out.append(more);
+                    break;
+                }
+                out.append(line);
+            }
+            return out.length() > Message.MAX_CONTENT_LENGTH ? out.substring(0, Message.MAX_CONTENT_LENGTH) : out.toString();
+        }
+    }
+}
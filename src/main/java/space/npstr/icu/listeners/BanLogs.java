@@ -29,7 +29,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 import space.npstr.icu.AuditLogUtil;
-import space.npstr.icu.db.entities.GuildSettingsRepository;
+import space.npstr.icu.db.entities.GuildSettingsCache;
+import space.npstr.icu.discord.BanMirror;
 
 /**
  * Created by napster on 16.05.18.
@@ -39,10 +40,16 @@ public class BanLogs extends ThreadedListener {
 
     private static final Logger log = LoggerFactory.getLogger(BanLogs.class);
 
-    private final GuildSettingsRepository guildSettingsRepo;
+    private final GuildSettingsCache guildSettingsCache;
+    private final BanMirror banMirror;
+    private final ReportAggregator reportAggregator;
 
-    public BanLogs(GuildSettingsRepository guildSettingsRepo) {
-        this.guildSettingsRepo = guildSettingsRepo;
+    public BanLogs(GuildExecutor guildExecutor, GuildSettingsCache guildSettingsCache, BanMirror banMirror,
+                   ReportAggregator reportAggregator) {
+        super(guildExecutor);
+        this.guildSettingsCache = guildSettingsCache;
+        this.banMirror = banMirror;
+        this.reportAggregator = reportAggregator;
     }
 
 
@@ -71,9 +78,9 @@ public class BanLogs extends ThreadedListener {
         User user = event.getUser();
         fetchWorkingLogChannel(guild).ifPresent(
                 logChannel -> {
-                    String reason = AuditLogUtil.getBanReason(guild, user, eventTime)
+                    String reason = AuditLogUtil.getBanReason(banMirror, guild, user, eventTime)
                             .orElse("Reason could not be retrieved");
-                    logChannel.sendMessage(String.format(BAN_FORMAT, user.getIdLong(), user, reason)).queue();
+                    reportAggregator.report(logChannel, String.format(BAN_FORMAT, user.getIdLong(), user, reason));
                 }
         );
     }
@@ -88,7 +95,7 @@ public class BanLogs extends ThreadedListener {
                     String unbannerName = AuditLogUtil.getUnbanner(guild, user, eventTime)
                             .map(unbanner -> String.format("<@%s> (%s)", unbanner.getIdLong(), unbanner))
                             .orElse("Unbanner could not be retrieved");
-                    logChannel.sendMessage(String.format(UNBAN_FORMAT, user.getIdLong(), user, unbannerName)).queue();
+                    reportAggregator.report(logChannel, String.format(UNBAN_FORMAT, user.getIdLong(), user, unbannerName));
                 }
         );
     }
@@ -101,9 +108,8 @@ public class BanLogs extends ThreadedListener {
         fetchWorkingLogChannel(guild).ifPresent(
                 logChannel -> AuditLogUtil.getKickEntry(guild, user, eventTime)
                         .map(entry -> String.format("By %s for: %s", entry.getUser(), entry.getReason()))
-                        .ifPresent(reason -> logChannel
-                                .sendMessage(String.format(KICK_FORMAT, user.getIdLong(), user, reason))
-                                .queue())
+                        .ifPresent(reason -> reportAggregator.report(logChannel,
+                                String.format(KICK_FORMAT, user.getIdLong(), user, reason)))
         );
     }
 
@@ -111,7 +117,7 @@ public class BanLogs extends ThreadedListener {
     //returns the log channel where we can post in of the provided guild
     // and takes appropriate measures if it failed to do so
     private Optional<TextChannel> fetchWorkingLogChannel(Guild guild) {
-        Long logChannelId = guildSettingsRepo.findOrCreateByGuild(guild).getLogChannelId();
+        Long logChannelId = guildSettingsCache.get(guild).getLogChannelId();
         if (logChannelId == null) {
             return Optional.empty();
         }
@@ -54,16 +54,21 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.support.TransactionTemplate;
+import space.npstr.icu.GlobalBanPropagation;
 import space.npstr.icu.Launcher;
 import space.npstr.icu.db.entities.GlobalBan;
 import space.npstr.icu.db.entities.GlobalBanRepository;
 import space.npstr.icu.db.entities.GuildSettings;
-import space.npstr.icu.db.entities.GuildSettingsRepository;
+import space.npstr.icu.db.entities.GuildSettingsCache;
+import space.npstr.icu.db.entities.GuildSettingsSnapshot;
+import space.npstr.icu.db.entities.LongSets;
 import space.npstr.icu.db.entities.MemberRoles;
 import space.npstr.icu.db.entities.MemberRolesRepository;
 import space.npstr.icu.db.entities.ReactionBan;
 import space.npstr.icu.db.entities.ReactionBanRepository;
 import space.npstr.icu.discord.AdminService;
+import space.npstr.icu.discord.BanMirror;
+import space.npstr.icu.suspicion.SuspicionScorer;
 
 /**
  * Created by napster on 25.01.18.
@@ -76,30 +81,52 @@ public class CommandsListener extends ThreadedListener {
 
     private static final Logger log = LoggerFactory.getLogger(CommandsListener.class);
 
+    private final GuildExecutor guildExecutor;
     private final TransactionTemplate transactionTemplate;
     private final AdminService adminService;
+    private final BanMirror banMirror;
     private final GlobalBanRepository globanBanRepo;
-    private final GuildSettingsRepository guildSettingsRepo;
+    private final GlobalBanPropagation globalBanPropagation;
+    private final GuildSettingsCache guildSettingsCache;
     private final MemberRolesRepository memberRolesRepo;
+    private final MemberRolesFingerprints memberRolesFingerprints;
+    private final MemberRolesWriteBehind memberRolesWriteBehind;
+    private final DepartedMembers departedMembers;
     private final ReactionBanRepository reactionBanRepo;
+    private final SuspicionScorer suspicionScorer;
     private final ObjectProvider<ShardManager> shardManager;
 
 
     public CommandsListener(
+        GuildExecutor guildExecutor,
         TransactionTemplate transactionTemplate,
         AdminService adminService,
+        BanMirror banMirror,
         GlobalBanRepository globanBanRepo,
-        GuildSettingsRepository guildSettingsRepo,
+        GlobalBanPropagation globalBanPropagation,
+        GuildSettingsCache guildSettingsCache,
         MemberRolesRepository memberRolesRepo,
+        MemberRolesFingerprints memberRolesFingerprints,
+        MemberRolesWriteBehind memberRolesWriteBehind,
+        DepartedMembers departedMembers,
         ReactionBanRepository reactionBanRepo,
+        SuspicionScorer suspicionScorer,
         ObjectProvider<ShardManager> shardManager
     ) {
+        super(guildExecutor);
+        this.guildExecutor = guildExecutor;
         this.transactionTemplate = transactionTemplate;
         this.adminService = adminService;
+        this.banMirror = banMirror;
         this.globanBanRepo = globanBanRepo;
-        this.guildSettingsRepo = guildSettingsRepo;
+        this.globalBanPropagation = globalBanPropagation;
+        this.guildSettingsCache = guildSettingsCache;
         this.memberRolesRepo = memberRolesRepo;
+        this.memberRolesFingerprints = memberRolesFingerprints;
+        this.memberRolesWriteBehind = memberRolesWriteBehind;
+        this.departedMembers = departedMembers;
         this.reactionBanRepo = reactionBanRepo;
+        this.suspicionScorer = suspicionScorer;
         this.shardManager = shardManager;
     }
 
@@ -109,25 +136,22 @@ public class CommandsListener extends ThreadedListener {
 
     @Override
     public void onMessageReceived(MessageReceivedEvent event) {
-        if (event.isFromGuild()) {
+        //cheap checks before queueing up every single message of a guild
+        if (event.isFromGuild()
+            && !event.getAuthor().isBot()
+            && event.getMessage().getMentions().getUsers().contains(event.getJDA().getSelfUser())) {
             getExecutor(event.getGuild()).execute(() ->
                 transactionTemplate.executeWithoutResult(__ -> guildMessageReceived(event))
             );
         }
     }
 
+    //only called for messages mentioning us, sent by non-bots
     private void guildMessageReceived(MessageReceivedEvent event) {
-        if (event.getAuthor().isBot()) {
-            return;
-        }
-
         if (!event.getChannel().canTalk()) {
             return;
         }
 
-        if (!event.getMessage().getMentions().getUsers().contains(event.getJDA().getSelfUser())) {
-            return;
-        }
         Member member = event.getMember();
         if (member == null) {
             return;
@@ -144,7 +168,7 @@ public class CommandsListener extends ThreadedListener {
         log.info("Mention received: {}", msg.getContentDisplay());
 
         if (content.contains("reset everyone")) {
-            guildSettingsRepo.findOrCreateByGuild(guild).resetEveryoneRole();
+            guildSettingsCache.update(guild, GuildSettings::resetEveryoneRole);
             event.getChannel().sendMessage("Reset the everyone role").queue();
         } else if (content.contains("set everyone")) {
             if (msg.getMentions().getRoles().isEmpty()) {
@@ -158,10 +182,10 @@ public class CommandsListener extends ThreadedListener {
                 return;
             }
 
-            guildSettingsRepo.findOrCreateByGuild(guild).setEveryoneRole(r);
+            guildSettingsCache.update(guild, s -> s.setEveryoneRole(r));
             event.getChannel().sendMessage("Set up " + r.getAsMention() + " as everyone role " + "👌👌🏻👌🏼👌🏽👌🏾👌🏿").queue();
         } else if (content.contains("reset here")) {
-            guildSettingsRepo.findOrCreateByGuild(guild).resetHereRole();
+            guildSettingsCache.update(guild, GuildSettings::resetHereRole);
             event.getChannel().sendMessage("Reset the here role").queue();
         } else if (content.contains("set here")) {
             if (msg.getMentions().getRoles().isEmpty()) {
@@ -175,10 +199,10 @@ public class CommandsListener extends ThreadedListener {
                 return;
             }
 
-            guildSettingsRepo.findOrCreateByGuild(guild).setHereRole(r);
+            guildSettingsCache.update(guild, s -> s.setHereRole(r));
             event.getChannel().sendMessage("Set up " + r.getAsMention() + " as here role " + "👌👌🏻👌🏼👌🏽👌🏾👌🏿").queue();
         } else if (content.contains("reset memberrole")) {
-            GuildSettings guildSettings = guildSettingsRepo.findOrCreateByGuild(guild);
+            GuildSettingsSnapshot guildSettings = guildSettingsCache.get(guild);
             Long memberRoleId = guildSettings.getMemberRoleId();
             if (memberRoleId != null) {
                 Role current = guild.getRoleById(memberRoleId);
@@ -188,7 +212,7 @@ public class CommandsListener extends ThreadedListener {
                         " remove it from current holders.").queue();
                 }
             }
-            guildSettings.resetMemberRole();
+            guildSettingsCache.update(guild, GuildSettings::resetMemberRole);
             event.getChannel().sendMessage("Reset the member role").queue();
         } else if (content.contains("set memberrole")) {
             Role r = null;
@@ -219,7 +243,7 @@ public class CommandsListener extends ThreadedListener {
                 return;
             }
 
-            GuildSettings guildSettings = guildSettingsRepo.findOrCreateByGuild(guild);
+            GuildSettingsSnapshot guildSettings = guildSettingsCache.get(guild);
             Long memberRoleId = guildSettings.getMemberRoleId();
             if (memberRoleId != null) {
                 Role current = guild.getRoleById(memberRoleId);
@@ -229,11 +253,11 @@ public class CommandsListener extends ThreadedListener {
                         " remove it from current holders.").queue();
                 }
             }
-            guildSettings.setMemberRole(memberRole);
+            guildSettingsCache.update(guild, s -> s.setMemberRole(memberRole));
             event.getChannel().sendMessage("Set up " + memberRole.getAsMention() + " as the member role. All existing" +
                     " and newly joining human users will get it assigned shortly.").queue();
         } else if (content.contains("reset reporting")) {
-            guildSettingsRepo.findOrCreateByGuild(guild).resetReportingChannel();
+            guildSettingsCache.update(guild, GuildSettings::resetReportingChannel);
             event.getChannel().sendMessage("Reset the reporting channel").queue();
         } else if (content.contains("set reporting")) {
 
@@ -248,10 +272,10 @@ public class CommandsListener extends ThreadedListener {
                 return;
             }
 
-            guildSettingsRepo.findOrCreateByGuild(guild).setReportingChannel(reportingChannel);
+            guildSettingsCache.update(guild, s -> s.setReportingChannel(reportingChannel));
             event.getChannel().sendMessage("Set up " + reportingChannel.getAsMention() + " as the reporting channel 🚔").queue();
         } else if (content.contains("reset log")) {
-            guildSettingsRepo.findOrCreateByGuild(guild).resetLogChannel();
+            guildSettingsCache.update(guild, GuildSettings::resetLogChannel);
             event.getChannel().sendMessage("Reset the log channel").queue();
         } else if (content.contains("set log")) {
 
@@ -266,8 +290,48 @@ public class CommandsListener extends ThreadedListener {
                 return;
             }
 
-            guildSettingsRepo.findOrCreateByGuild(guild).setLogChannel(logChannel);
+            guildSettingsCache.update(guild, s -> s.setLogChannel(logChannel));
             event.getChannel().sendMessage("Set up " + logChannel.getAsMention() + " as the log channel 🚔").queue();
+        } else if (content.contains("reset retention")) {
+            guildSettingsCache.update(guild, GuildSettings::resetMemberRolesRetentionDays);
+            event.getChannel().sendMessage("Reset the retention of roles of members who left to the default").queue();
+        } else if (content.contains("set retention")) {
+            Integer days = null;
+            for (String str : content.replace("set retention", "").split("\\p{javaSpaceChar}+")) {
+                try {
+                    days = Integer.parseInt(str);
+                    break;
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            if (days == null || days < 0) {
+                event.getChannel().sendMessage("Please provide the amount of days, or 0 to keep roles forever").queue();
+                return;
+            }
+            int retentionDays = days;
+            guildSettingsCache.update(guild, s -> s.setMemberRolesRetentionDays(retentionDays));
+            event.getChannel().sendMessage(retentionDays == 0
+                ? "Roles of members who left will be kept forever"
+                : "Roles of members who left will be kept for " + retentionDays + " days").queue();
+        } else if (content.contains("reset suspicion threshold")) {
+            guildSettingsCache.update(guild, GuildSettings::resetSuspicionThreshold);
+            event.getChannel().sendMessage("Reset the suspicion score above which joins are reported to the default").queue();
+        } else if (content.contains("set suspicion threshold")) {
+            Integer threshold = null;
+            for (String str : content.replace("set suspicion threshold", "").split("\\p{javaSpaceChar}+")) {
+                try {
+                    threshold = Integer.parseInt(str);
+                    break;
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            if (threshold == null || threshold < 0) {
+                event.getChannel().sendMessage("Please provide the suspicion score above which joins are reported").queue();
+                return;
+            }
+            int suspicionThreshold = threshold;
+            guildSettingsCache.update(guild, s -> s.setSuspicionThreshold(suspicionThreshold));
+            event.getChannel().sendMessage("Joins with a suspicion score of " + suspicionThreshold + " or more will be reported").queue();
         } else if (content.contains("add admin")) {
             List<Role> rolesToAdd = new ArrayList<>(msg.getMentions().getRoles());
             List<Member> membersToAdd = msg.getMentions().getMembers().stream()
@@ -294,9 +358,10 @@ public class CommandsListener extends ThreadedListener {
                 return;
             }
 
-            GuildSettings guildSettings = guildSettingsRepo.findOrCreateByGuild(guild);
-            guildSettings.addAdminRoles(rolesToAdd);
-            guildSettings.addAdminUsers(membersToAdd);
+            guildSettingsCache.update(guild, s -> {
+                s.addAdminRoles(rolesToAdd);
+                s.addAdminUsers(membersToAdd);
+            });
             List<String> added = Stream.concat(
                     membersToAdd.stream().map(m -> (IMentionable) m),
                     rolesToAdd.stream().map(r -> (IMentionable) r)
@@ -307,13 +372,13 @@ public class CommandsListener extends ThreadedListener {
             List<Role> rolesToRemove = new ArrayList<>(msg.getMentions().getRoles());
             if (!rolesToRemove.isEmpty()) {
                 Role r = rolesToRemove.get(0);
-                GuildSettings guildSettings = guildSettingsRepo.findOrCreateByGuild(guild);
+                GuildSettingsSnapshot guildSettings = guildSettingsCache.get(guild);
                 if (guildSettings.isAdminRole(r)) {
                     event.getChannel().sendMessage("Removing role " + r.getName() + " " + r.getId() + " from admins.").queue();
                 } else {
                     event.getChannel().sendMessage("Role " + r.getName() + " " + r.getId() + " is not an admin.").queue();
                 }
-                guildSettings.removeAdminRole(r);
+                guildSettingsCache.update(guild, s -> s.removeAdminRole(r));
                 return;
             }
 
@@ -323,13 +388,13 @@ public class CommandsListener extends ThreadedListener {
 
             if (!membersToRemove.isEmpty()) {
                 Member m = membersToRemove.get(0);
-                GuildSettings guildSettings = guildSettingsRepo.findOrCreateByGuild(guild);
+                GuildSettingsSnapshot guildSettings = guildSettingsCache.get(guild);
                 if (guildSettings.isAdminUser(m)) {
                     event.getChannel().sendMessage("Removing member " + m.getEffectiveName() + " " + m.getUser().getId() + " from admins.").queue();
                 } else {
                     event.getChannel().sendMessage("Member " + m.getEffectiveName() + " " + m.getUser().getIdLong() + " is not an admin.").queue();
                 }
-                guildSettings.removeAdminUser(m);
+                guildSettingsCache.update(guild, s -> s.removeAdminUser(m));
                 return;
             }
 
@@ -343,14 +408,14 @@ public class CommandsListener extends ThreadedListener {
 
             if (!idsToRemove.isEmpty()) {
                 long id = idsToRemove.get(0);
-                GuildSettings guildSettings = guildSettingsRepo.findOrCreateByGuild(guild);
+                GuildSettingsSnapshot guildSettings = guildSettingsCache.get(guild);
                 Role r = guild.getRoleById(id);
                 Member m = guild.getMemberById(id);
                 User u = shardManager().getUserById(id);
-                if (guildSettings.getAdminRoleIds().contains(id)) {
+                if (guildSettings.isAdminRoleId(id)) {
                     String roleName = r != null ? r.getName() : "unknown (role deleted ?)";
                     event.getChannel().sendMessage("Removing role " + roleName + " " + id + " from admins.").queue();
-                } else if (guildSettings.getAdminUserIds().contains(id)) {
+                } else if (guildSettings.isAdminUserId(id)) {
                     String memberName = m != null ? m.getEffectiveName() : null;
                     if (memberName == null) {
                         memberName = u != null ? u.getName() : "unknown (member left ?)";
@@ -370,8 +435,10 @@ public class CommandsListener extends ThreadedListener {
                     event.getChannel().sendMessage(message).queue();
                 }
 
-                guildSettings.removeAdminUser(id);
-                guildSettings.removeAdminRole(id);
+                guildSettingsCache.update(guild, s -> {
+                    s.removeAdminUser(id);
+                    s.removeAdminRole(id);
+                });
                 return;
             }
 
@@ -394,7 +461,7 @@ public class CommandsListener extends ThreadedListener {
                 return;
             }
 
-            guildSettingsRepo.findOrCreateByGuild(guild).addIgnoredRoles(rolesToAdd);
+            guildSettingsCache.update(guild, s -> s.addIgnoredRoles(rolesToAdd));
             List<String> added = rolesToAdd.stream().map(r -> (IMentionable) r)
                     .map(IMentionable::getAsMention).collect(Collectors.toList());
 
@@ -403,13 +470,13 @@ public class CommandsListener extends ThreadedListener {
             List<Role> rolesToRemove = new ArrayList<>(msg.getMentions().getRoles());
             if (!rolesToRemove.isEmpty()) {
                 Role role = rolesToRemove.get(0);
-                GuildSettings guildSettings = guildSettingsRepo.findOrCreateByGuild(guild);
+                GuildSettingsSnapshot guildSettings = guildSettingsCache.get(guild);
                 if (guildSettings.isIgnoredRole(role)) {
                     event.getChannel().sendMessage("Removing role " + role.getName() + " " + role.getId() + " from ignored roles.").queue();
                 } else {
                     event.getChannel().sendMessage("Role " + role.getName() + " " + role.getId() + " is not an ignored role.").queue();
                 }
-                guildSettings.removeIgnoredRole(role);
+                guildSettingsCache.update(guild, s -> s.removeIgnoredRole(role));
                 return;
             }
 
@@ -422,7 +489,7 @@ public class CommandsListener extends ThreadedListener {
 
             if (!roleIdsToRemove.isEmpty()) {
                 long roleId = roleIdsToRemove.get(0);
-                GuildSettings guildSettings = guildSettingsRepo.findOrCreateByGuild(guild);
+                GuildSettingsSnapshot guildSettings = guildSettingsCache.get(guild);
                 Role role = guild.getRoleById(roleId);
                 if (guildSettings.isIgnoredRoleId(roleId)) {
                     String roleName = role != null ? role.getName() : "unknown (role deleted ?)";
@@ -437,7 +504,7 @@ public class CommandsListener extends ThreadedListener {
                     event.getChannel().sendMessage(message).queue();
                 }
 
-                guildSettings.removeIgnoredRoleId(roleId);
+                guildSettingsCache.update(guild, s -> s.removeIgnoredRoleId(roleId));
                 return;
             }
 
@@ -552,10 +619,10 @@ public class CommandsListener extends ThreadedListener {
                 event.getChannel().sendMessage("I require the ban permission for this feature.").queue();
                 return;
             }
-            guildSettingsRepo.findOrCreateByGuild(guild).enableGlobalBans();
+            guildSettingsCache.update(guild, GuildSettings::enableGlobalBans);
             event.getChannel().sendMessage("Global bans have been enabled for this guild.").queue();
         } else if (content.contains("disable global bans")) {
-            guildSettingsRepo.findOrCreateByGuild(guild).disableGlobalBans();
+            guildSettingsCache.update(guild, GuildSettings::disableGlobalBans);
             event.getChannel().sendMessage("Global bans have been disabled for this guild.").queue();
         } else if (content.contains("list global bans")) {
             List<GlobalBan> globalBans = new ArrayList<>(globanBanRepo.findAll());
@@ -632,7 +699,7 @@ public class CommandsListener extends ThreadedListener {
                 return;
             }
 
-            globanBanRepo.findOrCreateByUser(targetUser).setReason(reason);
+            globalBanPropagation.publish(List.of(globanBanRepo.banUser(targetUser, reason)));
             event.getChannel().sendMessage("User " + targetUser + " " + targetUser.getAsMention()
                     + " added to global bans with reason: **" + reason + "**").queue();
         } else if (content.contains("global mass ban")) {
@@ -656,9 +723,7 @@ public class CommandsListener extends ThreadedListener {
                     .flatMap(Optional::stream)
                     .collect(Collectors.toSet());
 
-            for (User userToBan : usersToBan) {
-                globanBanRepo.findOrCreateByUser(userToBan).setReason(reason);
-            }
+            globalBanPropagation.publish(globanBanRepo.banUsers(usersToBan, reason));
 
             event.getChannel().sendMessage("**" + usersToBan.size() + "** users added to global bans with reason: **" + reason + "**").queue();
         } else if (content.contains("global unban")) {
@@ -690,20 +755,28 @@ public class CommandsListener extends ThreadedListener {
                     + " individually unban them from any guilds they were banned in.").queue();
         } else if (content.contains("nsa report")) {
             event.getChannel().sendMessage("This may take a while if there are many matches.").queue();
-            //populate ban lists of all available servers
+            //mirrored ban lists are checked locally, the others are populated through the api
+            List<Guild> mirrored = new ArrayList<>();
             Map<Guild, CompletableFuture<List<Guild.Ban>>> futures = new HashMap<>();
             shardManager().getGuildCache().forEach(g -> {
-                if (g.getSelfMember().hasPermission(Permission.BAN_MEMBERS)) {
+                if (banMirror.isMirrored(g)) {
+                    mirrored.add(g);
+                } else if (g.getSelfMember().hasPermission(Permission.BAN_MEMBERS)) {
                     futures.put(g, g.retrieveBanList().submit());
                 }
             });
 
             AtomicInteger totalBans = new AtomicInteger(0);
-            Map<Guild, List<Guild.Ban>> banLists = new HashMap<>();
+            for (Guild g : mirrored) {
+                totalBans.addAndGet(banMirror.countBans(g));
+            }
+            Map<Guild, Map<Long, Guild.Ban>> banLists = new HashMap<>();
             for (Map.Entry<Guild, CompletableFuture<List<Guild.Ban>>> entry : futures.entrySet()) {
-                List<Guild.Ban> bans = new ArrayList<>();
+                Map<Long, Guild.Ban> bans = new HashMap<>();
                 try {
-                    bans.addAll(entry.getValue().get(5, TimeUnit.MINUTES));
+                    for (Guild.Ban ban : entry.getValue().get(5, TimeUnit.MINUTES)) {
+                        bans.put(ban.getUser().getIdLong(), ban);
+                    }
                     totalBans.addAndGet(bans.size());
                 } catch (Exception e) {
                     log.error("Failed to fetch ban list for guild {}", entry.getKey(), e);
@@ -713,25 +786,42 @@ public class CommandsListener extends ThreadedListener {
 
             AtomicInteger found = new AtomicInteger(0);
             AtomicInteger checked = new AtomicInteger(0);
+            //reasons of mirrored bans may still need to be fetched, the reports are sent once they are in, without
+            // holding on to this thread and its transaction in the meantime
+            List<CompletableFuture<?>> reports = new ArrayList<>();
             guild.getMemberCache().forEach(m -> {
                 checked.incrementAndGet();
-                StringBuilder userReport = new StringBuilder();
-                for (Map.Entry<Guild, List<Guild.Ban>> banList : banLists.entrySet()) {
-                    Optional<Guild.Ban> ban = banList.getValue().stream()
-                            .filter(b -> b.getUser().equals(m.getUser()))
-                            .findAny();
-                    ban.ifPresent(b -> userReport.append(banList.getKey().getName()).append(" with reason: ").append(b.getReason()).append("\n"));
+                long userId = m.getIdLong();
+                List<CompletableFuture<String>> lines = new ArrayList<>();
+                for (long guildId : banMirror.getBanningGuildIds(userId)) {
+                    Guild g = shardManager().getGuildById(guildId);
+                    if (g != null) {
+                        lines.add(banMirror.getBanReason(g, userId)
+                                .thenApply(reason -> g.getName() + " with reason: " + reason.orElse(null) + "\n"));
+                    }
+                }
+                for (Map.Entry<Guild, Map<Long, Guild.Ban>> banList : banLists.entrySet()) {
+                    Guild.Ban ban = banList.getValue().get(userId);
+                    if (ban != null) {
+                        lines.add(CompletableFuture.completedFuture(banList.getKey().getName() + " with reason: " + ban.getReason() + "\n"));
+                    }
                 }
-                if (!userReport.isEmpty()) {
+                if (!lines.isEmpty()) {
                     found.incrementAndGet();
                     String user = "Member " + m.getAsMention() + " (" + m.getUser() + ") is banned in:\n";
-                    event.getChannel().sendMessage(user + userReport).queue();
+                    reports.add(CompletableFuture.allOf(lines.toArray(CompletableFuture[]::new)).thenRun(() -> {
+                        StringBuilder userReport = new StringBuilder(user);
+                        lines.forEach(line -> userReport.append(line.join()));
+                        event.getChannel().sendMessage(userReport.toString()).queue();
+                    }));
                 }
             });
 
-            event.getChannel().sendMessage("Checked " + checked.get() + " members of this guild against ban "
-                    + "lists in " + banLists.size() + " guilds for a total of " + totalBans.get() + " bans, and found "
-                    + found.get() + " matches.").queue();
+            String summary = "Checked " + checked.get() + " members of this guild against ban "
+                    + "lists in " + (mirrored.size() + banLists.size()) + " guilds for a total of " + totalBans.get() + " bans, and found "
+                    + found.get() + " matches.";
+            CompletableFuture.allOf(reports.toArray(CompletableFuture[]::new))
+                    .whenComplete((__, ___) -> event.getChannel().sendMessage(summary).queue());
 
         } else if (content.contains("add reaction ban")) {
             String[] split = content.trim().split("add reaction ban");
@@ -888,11 +978,49 @@ public class CommandsListener extends ThreadedListener {
             }
             User targetUser = mentionedUsers.iterator().next();
 
-            memberRolesRepo.findOrCreateById(MemberRoles.key(guild, targetUser)).setRoleIds(List.of());
+            memberRolesWriteBehind.flush(guild.getIdLong(), targetUser.getIdLong());
+            memberRolesRepo.findOrCreateById(MemberRoles.key(guild, targetUser)).setRoleIds(LongSets.EMPTY);
+            memberRolesFingerprints.forget(guild.getIdLong(), targetUser.getIdLong());
+            departedMembers.forget(guild.getIdLong(), targetUser.getIdLong());
             event.getChannel().sendMessage("👌👌🏻👌🏼👌🏽👌🏾👌🏿").queue();
+        } else if (content.contains("status executors")) {
+            if (!adminService.isBotOwner(event.getAuthor())) {
+                event.getChannel().sendMessage("Sorry, executor stats are reserved for the bot owner").queue();
+                return;
+            }
+
+            StringBuilder out = new StringBuilder("Listeners (queued / submitted / dropped / over capacity, wait p50 p99, exec p50 p99):\n");
+            for (ListenerStats stats : guildExecutor.getListenerStats()) {
+                out.append(stats.getListener()).append(": ")
+                    .append(stats.getQueued()).append(" / ")
+                    .append(stats.getSubmitted()).append(" / ")
+                    .append(stats.getDropped()).append(" / ")
+                    .append(stats.getOverCapacity()).append(", wait ")
+                    .append(formatBucket(stats.getQueueLatency().percentileMillis(0.5))).append(" ")
+                    .append(formatBucket(stats.getQueueLatency().percentileMillis(0.99))).append(", exec ")
+                    .append(formatBucket(stats.getExecutionTime().percentileMillis(0.5))).append(" ")
+                    .append(formatBucket(stats.getExecutionTime().percentileMillis(0.99))).append("\n");
+            }
+
+            out.append("\nSlowest guilds (queued, behind, avg wait, avg exec, max exec, dropped):\n");
+            for (GuildMailbox.GuildStats stats : guildExecutor.slowestGuilds(10)) {
+                Guild g = shardManager().getGuildById(stats.guildId());
+                out.append(g != null ? g.getName() : "unknown").append(" ").append(stats.guildId()).append(": ")
+                    .append(stats.queued()).append(", ")
+                    .append(stats.behindMillis()).append("ms, ")
+                    .append(String.format("%.1fms, %.1fms, ", stats.avgQueueMillis(), stats.avgExecMillis()))
+                    .append(stats.maxExecMillis()).append("ms, ")
+                    .append(stats.dropped()).append("\n");
+            }
+
+            String output = out.toString();
+            if (output.length() > 1900) {
+                output = output.substring(0, 1900) + "...";
+            }
+            event.getChannel().sendMessage("```\n" + output + "\n```").queue();
         } else if (content.contains("status") || content.contains("config")) {
             String output = "";
-            GuildSettings guildSettings = guildSettingsRepo.findOrCreateByGuild(guild);
+            GuildSettingsSnapshot guildSettings = guildSettingsCache.get(guild);
 
             Long everyoneRoleId = guildSettings.getEveryoneRoleId();
             if (everyoneRoleId != null) {
@@ -944,6 +1072,20 @@ public class CommandsListener extends ThreadedListener {
                 output += "Log channel not configured.\n";
             }
 
+            Integer retentionDays = guildSettings.getMemberRolesRetentionDays();
+            if (retentionDays == null) {
+                output += "Retention of roles of members who left not configured, the default applies.\n";
+            } else if (retentionDays == 0) {
+                output += "Roles of members who left are kept forever.\n";
+            } else {
+                output += "Roles of members who left are kept for " + retentionDays + " days.\n";
+            }
+
+            Integer suspicionThreshold = guildSettings.getSuspicionThreshold();
+            output += suspicionThreshold == null
+                ? "Suspicion threshold not configured, joins scoring " + suspicionScorer.defaultThreshold() + " or more are reported.\n"
+                : "Joins scoring " + suspicionThreshold + " or more are reported.\n";
+
             StringBuilder ignoredRolesStr = new StringBuilder();
             for (long ignoredRoleId : guildSettings.getIgnoredRoleIds()) {
                 Role ignoredRole = guild.getRoleById(ignoredRoleId);
@@ -1000,6 +1142,10 @@ public class CommandsListener extends ThreadedListener {
             output += "`set reporting #channel`\n\t\tSet the reporting channel for suspicious users joining this guild.\n";
             output += "`reset log #channel`\n\t\tReset the log channel\n";
             output += "`set log #channel`\n\t\tSet the log channel for bans, unbans and kicks.\n";
+            output += "`set retention <days>`\n\t\tSet for how many days roles of members who left are kept, 0 for forever.\n";
+            output += "`reset retention`\n\t\tReset the retention of roles of members who left to the default.\n";
+            output += "`set suspicion threshold <score>`\n\t\tSet the suspicion score from which joins are reported.\n";
+            output += "`reset suspicion threshold`\n\t\tReset the suspicion score from which joins are reported to the default.\n";
             output += "`add admin @role or @member or id`\n\t\tAdd admins for this guild.\n";
             output += "`remove admin @role or @member or id`\n\t\tRemove admins for this guild.\n";
             output += "`add ignored @role or id`\n\t\tAdd ignored role for this guild.\n";
@@ -1020,11 +1166,17 @@ public class CommandsListener extends ThreadedListener {
             output += "`list reaction bans`\n\t\tShow all reaction bans set up for channels of this guild.\n";
             output += "`forget roles userId`\n\t\tForget the roles saved for a user in the database.\n";
             output += "`status` or `config`\n\t\tShow current configuration.\n";
+            output += "`status executors`\n\t\tShow event queue and processing stats of all guilds (bot owner only).\n";
             output += "`help` or `commands`\n\t\tShow this command help.\n";
             event.getChannel().sendMessage(output).queue();
         }
     }
 
+    //histogram bucket upper bound, -1 meaning out of range
+    private static String formatBucket(long millis) {
+        return millis < 0 ? ">60s" : "<" + millis + "ms";
+    }
+
     private Optional<User> getUserFromId(String possibleId, ShardManager shardManager) {
         long userId;
         try {
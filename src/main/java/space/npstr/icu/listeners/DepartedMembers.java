@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import java.util.concurrent.atomic.LongAdder;
+import org.jspecify.annotations.Nullable;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.db.entities.MemberRoles.MemberComposite;
+import space.npstr.icu.db.entities.MemberRolesBulkRepository.Row;
+import space.npstr.icu.db.entities.MemberRolesProperties;
+import space.npstr.icu.metrics.MetricsSource;
+
+/**
+ * Keeps the roles of members who recently left a guild in memory, so that restoring them when they rejoin, which alt
+ * waves do a lot, does not need a database lookup. Bounded by size, anything evicted is looked up in the database.
+ */
+@Component
+public class DepartedMembers implements MetricsSource {
+
+    private final Cache<MemberComposite, Row> departed;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public DepartedMembers(MemberRolesProperties properties) {
+        this.departed = Caffeine.newBuilder()
+            .maximumSize(properties.departedCacheSize())
+            .recordStats()
+            .build();
+    }
+
+    public void remember(long guildId, Row row) {
+        departed.put(new MemberComposite(guildId, row.userId()), row);
+    }
+
+    /**
+     * @return the roles the member had when they left, if still known. They are forgotten, since the member is back.
+     */
+    @Nullable
+    public Row take(long guildId, long userId) {
+        Row row = departed.asMap().remove(new MemberComposite(guildId, userId));
+        (row != null ? hits : misses).increment();
+        return row;
+    }
+
+    /**
+     * To be called when the stored roles of a member are changed by other means than the member events.
+     */
+    public void forget(long guildId, long userId) {
+        departed.invalidate(new MemberComposite(guildId, userId));
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        CacheStats stats = departed.stats();
+        MetricsSource.gauge(out, "icu_departed_members", "", departed.estimatedSize());
+        MetricsSource.counter(out, "icu_departed_members_lookups_total", "result=\"hit\"", hits.sum());
+        MetricsSource.counter(out, "icu_departed_members_lookups_total", "result=\"miss\"", misses.sum());
+        MetricsSource.counter(out, "icu_departed_members_evictions_total", "", stats.evictionCount());
+    }
+}
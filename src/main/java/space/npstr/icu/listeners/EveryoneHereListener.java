@@ -20,13 +20,14 @@ package space.npstr.icu.listeners;
 import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Mentions;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.entities.emoji.Emoji;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import org.springframework.stereotype.Component;
-import space.npstr.icu.db.entities.GuildSettings;
-import space.npstr.icu.db.entities.GuildSettingsRepository;
+import space.npstr.icu.db.entities.GuildSettingsCache;
+import space.npstr.icu.db.entities.GuildSettingsSnapshot;
 import space.npstr.icu.discord.AdminService;
 
 /**
@@ -38,18 +39,26 @@ import space.npstr.icu.discord.AdminService;
 public class EveryoneHereListener extends ThreadedListener {
 
     private final AdminService adminService;
-    private final GuildSettingsRepository guildSettingsRepo;
+    private final GuildSettingsCache guildSettingsCache;
 
-    public EveryoneHereListener(AdminService adminService, GuildSettingsRepository guildSettingsRepo) {
+    public EveryoneHereListener(GuildExecutor guildExecutor, AdminService adminService, GuildSettingsCache guildSettingsCache) {
+        super(guildExecutor);
         this.adminService = adminService;
-        this.guildSettingsRepo = guildSettingsRepo;
+        this.guildSettingsCache = guildSettingsCache;
     }
 
     @Override
     public void onMessageReceived(MessageReceivedEvent event) {
-        if (event.isFromGuild()) {
-            getExecutor(event.getGuild()).execute(() -> guildMessageReceived(event));
+        if (!event.isFromGuild()) {
+            return;
+        }
+        //only messages mentioning everyone or any role can trigger us, no need to queue up anything else
+        Mentions mentions = event.getMessage().getMentions();
+        if (!mentions.mentionsEveryone() && mentions.getRoles().isEmpty()) {
+            return;
         }
+        //during mass mention spam, the latest messages are the interesting ones
+        getExecutor(event.getGuild(), OverflowPolicy.DROP_OLDEST).execute(() -> guildMessageReceived(event));
     }
 
     private void guildMessageReceived(MessageReceivedEvent event) {
@@ -70,7 +79,7 @@ public class EveryoneHereListener extends ThreadedListener {
 
         Message msg = event.getMessage();
 
-        GuildSettings guildSettings = guildSettingsRepo.findOrCreateByGuild(guild);
+        GuildSettingsSnapshot guildSettings = guildSettingsCache.get(guild);
         Long hereId = guildSettings.getHereRoleId();
         Role hereRole = hereId != null ? guild.getRoleById(hereId) : null;
         if (hereRole != null
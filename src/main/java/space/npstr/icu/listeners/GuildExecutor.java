@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.metrics.MetricsSource;
+
+/**
+ * Per guild serial execution shared by all {@link ThreadedListener}s.
+ * <p>
+ * Every guild gets a lightweight mailbox, and all mailboxes are drained by shared workers, either a bounded pool of
+ * platform threads or virtual threads, see {@link ListenerProperties.Mode}. Events of a guild keep their order across
+ * all listeners, while the amount of platform threads does not depend on the amount of guilds.
+ */
+@Component
+public class GuildExecutor implements MetricsSource {
+
+    private static final Logger log = LoggerFactory.getLogger(GuildExecutor.class);
+
+    private static final Thread.UncaughtExceptionHandler exceptionHandler
+            = (t, e) -> log.error("Exception in thread {}", t.getName(), e);
+
+    //exposing all guilds would create way too many time series
+    private static final int SLOWEST_GUILDS_EXPOSED = 20;
+
+    private final ExecutorService workers;
+
+    private final LoadingCache<Long, GuildMailbox> mailboxes;
+
+    private final ConcurrentHashMap<String, ListenerStats> listenerStats = new ConcurrentHashMap<>();
+
+    public GuildExecutor(ListenerProperties listenerProperties) {
+        this.workers = provideWorkers(listenerProperties);
+        log.info("Processing guild events with {} workers", listenerProperties.mode());
+
+        this.mailboxes = Caffeine.newBuilder()
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(guildId -> new GuildMailbox(guildId, listenerProperties.mailboxCapacity(), this.workers));
+    }
+
+    private static ExecutorService provideWorkers(ListenerProperties listenerProperties) {
+        return switch (listenerProperties.mode()) {
+            case PLATFORM -> {
+                AtomicInteger threadNumber = new AtomicInteger(0);
+                yield Executors.newFixedThreadPool(listenerProperties.threads(),
+                        r -> {
+                            Thread t = new Thread(r, "guild-worker-" + threadNumber.getAndIncrement());
+                            t.setUncaughtExceptionHandler(exceptionHandler);
+                            return t;
+                        });
+            }
+            // since JDK 24 virtual threads blocking inside of synchronized blocks (JDBC drivers, JDA's requester)
+            // unmount from their carrier, so blocking JPA calls and waiting on rest actions are fine here
+            case VIRTUAL -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+                    .name("guild-worker-", 0)
+                    .uncaughtExceptionHandler(exceptionHandler)
+                    .factory());
+        };
+    }
+
+    /**
+     * @return the stats for tasks submitted by the provided listener
+     */
+    ListenerStats register(String listener) {
+        return listenerStats.computeIfAbsent(listener, ListenerStats::new);
+    }
+
+    /**
+     * @return the serial executor of the provided guild, handling overflow of its mailbox with the provided policy
+     */
+    Executor forGuild(long guildId, ListenerStats stats, OverflowPolicy overflowPolicy) {
+        GuildMailbox mailbox = mailboxes.get(guildId);
+        return task -> mailbox.offer(task, stats, overflowPolicy);
+    }
+
+    public Collection<ListenerStats> getListenerStats() {
+        return listenerStats.values();
+    }
+
+    /**
+     * @return the guilds whose tasks wait the longest to be run, slowest first
+     */
+    List<GuildMailbox.GuildStats> slowestGuilds(int limit) {
+        return mailboxes.asMap().values().stream()
+                .map(GuildMailbox::stats)
+                .sorted(Comparator.comparingDouble(GuildExecutor::lag).reversed())
+                .limit(limit)
+                .toList();
+    }
+
+    //how far behind a guild is, either currently or on average
+    private static double lag(GuildMailbox.GuildStats stats) {
+        return Math.max(stats.behindMillis(), stats.avgQueueMillis() + stats.avgExecMillis());
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        for (ListenerStats stats : listenerStats.values()) {
+            String labels = "listener=\"" + stats.getListener() + "\"";
+            MetricsSource.gauge(out, "icu_listener_queued_tasks", labels, stats.getQueued());
+            MetricsSource.counter(out, "icu_listener_submitted_tasks_total", labels, stats.getSubmitted());
+            MetricsSource.counter(out, "icu_listener_dropped_tasks_total", labels, stats.getDropped());
+            MetricsSource.counter(out, "icu_listener_over_capacity_tasks_total", labels, stats.getOverCapacity());
+            stats.getQueueLatency().writeTo(out, "icu_listener_queue_latency_seconds", labels);
+            stats.getExecutionTime().writeTo(out, "icu_listener_execution_time_seconds", labels);
+        }
+        for (GuildMailbox.GuildStats stats : slowestGuilds(SLOWEST_GUILDS_EXPOSED)) {
+            String labels = "guild=\"" + stats.guildId() + "\"";
+            MetricsSource.gauge(out, "icu_guild_queued_tasks", labels, stats.queued());
+            MetricsSource.gauge(out, "icu_guild_behind_seconds", labels, stats.behindMillis() / 1000.0);
+            MetricsSource.gauge(out, "icu_guild_avg_queue_latency_seconds", labels, stats.avgQueueMillis() / 1000);
+            MetricsSource.gauge(out, "icu_guild_avg_execution_time_seconds", labels, stats.avgExecMillis() / 1000);
+            MetricsSource.counter(out, "icu_guild_dropped_tasks_total", labels, stats.dropped());
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Bounded serial queue of tasks for a single guild. At most one worker drains a mailbox at any time, so tasks of a
+ * guild run one after another in the order they were submitted, no matter which listener submitted them.
+ * <p>
+ * Once the capacity is reached, submitted tasks are handled according to their {@link OverflowPolicy}. Droppable tasks
+ * are also kept in a queue per listener, so the oldest one of a listener is found right away. A dropped task is only
+ * marked as such and skipped once it reaches the head of the mailbox.
+ */
+class GuildMailbox implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(GuildMailbox.class);
+
+    //max tasks to run before handing the worker back to other guilds
+    private static final int THROUGHPUT = 16;
+
+    //weight of the latest sample in the moving averages
+    private static final double EWMA_ALPHA = 0.1;
+
+    private final long guildId;
+    private final int capacity;
+    private final Executor workers;
+    private final ReentrantLock lock = new ReentrantLock();
+    //guarded by lock, may contain dropped tasks
+    private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+    //guarded by lock, tasks that may be dropped, by listener, in the same order as in tasks
+    private final IdentityHashMap<ListenerStats, ArrayDeque<Task>> droppable = new IdentityHashMap<>();
+    private int size = 0; //guarded by lock, tasks that have not been dropped
+    private int droppedInQueue = 0; //guarded by lock
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private boolean overflowing = false; //guarded by lock
+    private long dropped = 0; //guarded by lock
+
+    //only written by the worker currently draining this mailbox
+    private volatile long tasksRun = 0;
+    private volatile double avgQueueLatencyNanos = 0;
+    private volatile double avgExecutionNanos = 0;
+    private volatile long maxExecutionNanos = 0;
+
+    GuildMailbox(long guildId, int capacity, Executor workers) {
+        this.guildId = guildId;
+        this.capacity = capacity;
+        this.workers = workers;
+    }
+
+    void offer(Runnable runnable, ListenerStats stats, OverflowPolicy overflowPolicy) {
+        stats.submitted.increment();
+        lock.lock();
+        try {
+            if (size >= capacity) {
+                if (!overflowing) {
+                    overflowing = true;
+                    log.warn("Mailbox of guild {} reached its capacity of {} tasks", guildId, capacity);
+                }
+                switch (overflowPolicy) {
+                    case DROP_OLDEST -> {
+                        dropped++;
+                        Task oldest = removeOldestDroppable(stats);
+                        if (oldest == null) { //nothing older to drop, so this one goes
+                            stats.dropped.increment();
+                            return;
+                        }
+                        oldest.stats.dropped.increment();
+                        oldest.stats.queued.decrementAndGet();
+                    }
+                    case NEVER_DROP -> stats.overCapacity.increment();
+                }
+            } else {
+                overflowing = false;
+            }
+            Task task = new Task(runnable, stats, overflowPolicy, System.nanoTime());
+            tasks.add(task);
+            size++;
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                droppable.computeIfAbsent(stats, __ -> new ArrayDeque<>()).add(task);
+            }
+            stats.queued.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    //only tasks of the same listener are dropped, a listener flooding the mailbox must not evict the tasks of others
+    //guarded by lock
+    @Nullable
+    private Task removeOldestDroppable(ListenerStats stats) {
+        ArrayDeque<Task> listenerTasks = droppable.get(stats);
+        Task task = listenerTasks == null ? null : listenerTasks.poll();
+        if (task == null) {
+            return null;
+        }
+        task.dropped = true;
+        task.runnable = null;
+        size--;
+        //once there are as many dropped tasks as live ones, sweep them out so a stalled mailbox does not grow
+        if (++droppedInQueue >= capacity) {
+            tasks.removeIf(queued -> queued.dropped);
+            droppedInQueue = 0;
+        }
+        return task;
+    }
+
+    //guarded by lock
+    @Nullable
+    private Task peekLive() {
+        Task task = tasks.peek();
+        while (task != null && task.dropped) {
+            tasks.poll();
+            droppedInQueue--;
+            task = tasks.peek();
+        }
+        return task;
+    }
+
+    @Nullable
+    private Task poll() {
+        lock.lock();
+        try {
+            Task task = peekLive();
+            if (task == null) {
+                return null;
+            }
+            tasks.poll();
+            size--;
+            if (task.overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                //the oldest droppable task of its listener, it is first in line there as well
+                droppable.get(task.stats).poll();
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isEmpty() {
+        lock.lock();
+        try {
+            return size == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            workers.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        try (MDC.MDCCloseable ignored = MDC.putCloseable("guild", Long.toString(guildId))) {
+            for (int i = 0; i < THROUGHPUT; i++) {
+                Task task = poll();
+                if (task == null) {
+                    break;
+                }
+                runTask(task);
+            }
+        } finally {
+            scheduled.set(false);
+            if (!isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    private void runTask(Task task) {
+        ListenerStats stats = task.stats;
+        Runnable runnable = task.runnable;
+        stats.queued.decrementAndGet();
+        long started = System.nanoTime();
+        long queueLatency = started - task.enqueued;
+        stats.queueLatency.record(queueLatency);
+        try {
+            if (runnable != null) {
+                runnable.run();
+            }
+        } catch (Exception e) {
+            log.error("Exception in task of guild {}", guildId, e);
+        } finally {
+            long executionTime = System.nanoTime() - started;
+            stats.executionTime.record(executionTime);
+            tasksRun++;
+            avgQueueLatencyNanos += (queueLatency - avgQueueLatencyNanos) * EWMA_ALPHA;
+            avgExecutionNanos += (executionTime - avgExecutionNanos) * EWMA_ALPHA;
+            if (executionTime > maxExecutionNanos) {
+                maxExecutionNanos = executionTime;
+            }
+        }
+    }
+
+    GuildStats stats() {
+        int queued;
+        long oldestQueuedNanos;
+        long droppedTasks;
+        lock.lock();
+        try {
+            queued = size;
+            Task oldest = peekLive();
+            oldestQueuedNanos = oldest == null ? 0 : System.nanoTime() - oldest.enqueued;
+            droppedTasks = dropped;
+        } finally {
+            lock.unlock();
+        }
+        return new GuildStats(guildId, queued, TimeUnit.NANOSECONDS.toMillis(oldestQueuedNanos), droppedTasks,
+                tasksRun, avgQueueLatencyNanos / 1_000_000, avgExecutionNanos / 1_000_000,
+                TimeUnit.NANOSECONDS.toMillis(maxExecutionNanos));
+    }
+
+    /**
+     * @param queued          tasks currently waiting
+     * @param behindMillis    how long the oldest waiting task has been waiting
+     * @param dropped         tasks dropped because this mailbox was full
+     * @param tasksRun        tasks run so far
+     * @param avgQueueMillis  moving average of the time between submitting and starting a task
+     * @param avgExecMillis   moving average of the time a task runs
+     * @param maxExecMillis   longest time a task has been running
+     */
+    record GuildStats(long guildId, int queued, long behindMillis, long dropped, long tasksRun,
+                      double avgQueueMillis, double avgExecMillis, long maxExecMillis) {}
+
+    private static final class Task {
+
+        private final ListenerStats stats;
+        private final OverflowPolicy overflowPolicy;
+        private final long enqueued;
+        //guarded by the lock of the mailbox, the runnable is let go once the task is dropped
+        @Nullable
+        private Runnable runnable;
+        private boolean dropped = false;
+
+        private Task(Runnable runnable, ListenerStats stats, OverflowPolicy overflowPolicy, long enqueued) {
+            this.runnable = runnable;
+            this.stats = stats;
+            this.overflowPolicy = overflowPolicy;
+            this.enqueued = enqueued;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * @param mode            how the per guild mailboxes are drained
+ * @param threads         amount of worker threads shared by all guilds to process events, only used in {@link Mode#PLATFORM}
+ * @param mailboxCapacity amount of tasks a guild can queue up before the {@link OverflowPolicy} of new tasks applies
+ */
+@ConfigurationProperties(prefix = "app.listeners")
+public record ListenerProperties(
+	@DefaultValue("PLATFORM") Mode mode,
+	@DefaultValue("32") int threads,
+	@DefaultValue("10000") int mailboxCapacity
+) {
+
+	public enum Mode {
+		/**
+		 * A bounded pool of platform threads drains the mailboxes.
+		 */
+		PLATFORM,
+		/**
+		 * Every mailbox is drained by its own virtual thread while it has work queued.
+		 */
+		VIRTUAL,
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import space.npstr.icu.metrics.Histogram;
+
+/**
+ * Metrics of the tasks a single listener submitted to the guild mailboxes.
+ */
+public class ListenerStats {
+
+    private final String listener;
+    final AtomicInteger queued = new AtomicInteger(0);
+    final LongAdder submitted = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder overCapacity = new LongAdder();
+    final Histogram queueLatency = new Histogram();
+    final Histogram executionTime = new Histogram();
+
+    ListenerStats(String listener) {
+        this.listener = listener;
+    }
+
+    public String getListener() {
+        return listener;
+    }
+
+    /**
+     * @return tasks currently waiting in guild mailboxes
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    /**
+     * @return tasks dropped because their mailbox was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return tasks that were not allowed to be dropped, and were queued in a full mailbox anyway
+     */
+    public long getOverCapacity() {
+        return overCapacity.sum();
+    }
+
+    /**
+     * @return time between submitting a task and it starting to run
+     */
+    public Histogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    public Histogram getExecutionTime() {
+        return executionTime;
+    }
+}
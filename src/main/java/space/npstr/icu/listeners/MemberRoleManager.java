@@ -33,7 +33,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Component;
-import space.npstr.icu.db.entities.GuildSettingsRepository;
+import space.npstr.icu.db.entities.GuildSettingsCache;
 
 /**
  * Created by napster on 13.02.18.
@@ -46,11 +46,12 @@ public class MemberRoleManager extends ThreadedListener {
 
     private static final Logger log = LoggerFactory.getLogger(MemberRoleManager.class);
 
-    private final GuildSettingsRepository guildSettingsRepo;
+    private final GuildSettingsCache guildSettingsCache;
     private final ObjectProvider<ShardManager> shardManager;
 
-    public MemberRoleManager(GuildSettingsRepository guildSettingsRepo, ObjectProvider<ShardManager> shardManager) {
-        this.guildSettingsRepo = guildSettingsRepo;
+    public MemberRoleManager(GuildExecutor guildExecutor, GuildSettingsCache guildSettingsCache, ObjectProvider<ShardManager> shardManager) {
+        super(guildExecutor);
+        this.guildSettingsCache = guildSettingsCache;
         this.shardManager = shardManager;
 
         ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(
@@ -84,7 +85,7 @@ public class MemberRoleManager extends ThreadedListener {
 
 
     private void assignMemberRole(Guild guild, Stream<Member> members) {
-        Long roleId = guildSettingsRepo.findOrCreateByGuild(guild).getMemberRoleId();
+        Long roleId = guildSettingsCache.get(guild).getMemberRoleId();
         if (roleId == null) { //no member role configured
             return;
         }
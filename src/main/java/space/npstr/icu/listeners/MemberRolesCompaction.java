@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.Launcher;
+import space.npstr.icu.db.entities.GuildSettingsCache;
+import space.npstr.icu.db.entities.MemberRolesBulkRepository;
+import space.npstr.icu.db.entities.MemberRolesProperties;
+import space.npstr.icu.metrics.MetricsSource;
+
+/**
+ * Keeps the member_roles table from growing forever. Periodically deletes the rows of guilds the bot is no longer in,
+ * and the rows of members who left a guild longer ago than its retention. Rows of current members are never deleted.
+ * <p>
+ * Works in batches of the configured size, and only runs while all shards are connected, since a guild missing from
+ * the cache of a disconnected shard would look like a guild that was left. Guilds that are unavailable during an outage
+ * are not missing, and the rows of a missing guild are only deleted once it has been missing for the grace period.
+ */
+@Component
+public class MemberRolesCompaction implements MetricsSource, DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(MemberRolesCompaction.class);
+
+    private final MemberRolesBulkRepository bulkRepository;
+    private final GuildSettingsCache guildSettingsCache;
+    private final MemberRolesFingerprints fingerprints;
+    private final DepartedMembers departedMembers;
+    private final ObjectProvider<ShardManager> shardManager;
+    private final MemberRolesProperties properties;
+    private final ScheduledExecutorService scheduler;
+    //guild id -> when it was first found missing, only touched by the compaction thread
+    private final Map<Long, Instant> missingSince = new HashMap<>();
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder leftGuildRowsDeleted = new LongAdder();
+    private final LongAdder expiredRowsDeleted = new LongAdder();
+
+    public MemberRolesCompaction(MemberRolesBulkRepository bulkRepository, GuildSettingsCache guildSettingsCache,
+                                 MemberRolesFingerprints fingerprints, DepartedMembers departedMembers,
+                                 ObjectProvider<ShardManager> shardManager, MemberRolesProperties properties) {
+        this.bulkRepository = bulkRepository;
+        this.guildSettingsCache = guildSettingsCache;
+        this.fingerprints = fingerprints;
+        this.departedMembers = departedMembers;
+        this.shardManager = shardManager;
+        this.properties = properties;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("member-roles-compaction").daemon().factory()
+        );
+        long interval = Math.max(1, properties.compactionInterval().toMillis());
+        this.scheduler.scheduleWithFixedDelay(this::compact, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void compact() {
+        try {
+            ShardManager sm = shardManager.getObject();
+            if (sm.getShards().stream().anyMatch(shard -> shard.getStatus() != JDA.Status.CONNECTED)) {
+                log.info("Skipping member roles compaction, not all shards are connected");
+                return;
+            }
+
+            long started = System.nanoTime();
+            long leftGuildRows = 0;
+            long expiredRows = 0;
+            Instant now = Instant.now();
+            Set<Long> stillMissing = new HashSet<>();
+            for (long guildId : bulkRepository.findGuildIds()) {
+                Guild guild = sm.getGuildById(guildId);
+                if (guild != null) {
+                    expiredRows += deleteExpired(guild);
+                    continue;
+                }
+                if (Launcher.isUnavailable(sm, guildId)) {
+                    continue;
+                }
+                Instant since = missingSince.computeIfAbsent(guildId, __ -> now);
+                if (since.plus(properties.leftGuildGracePeriod()).isAfter(now)) {
+                    stillMissing.add(guildId);
+                } else {
+                    leftGuildRows += deleteGuild(guildId);
+                }
+            }
+            //guilds that came back, or were deleted, start over
+            missingSince.keySet().retainAll(stillMissing);
+
+            runs.increment();
+            leftGuildRowsDeleted.add(leftGuildRows);
+            expiredRowsDeleted.add(expiredRows);
+            log.info("Compacted member roles in {}ms, deleted {} rows of left guilds and {} rows past their retention",
+                (System.nanoTime() - started) / 1_000_000, leftGuildRows, expiredRows);
+        } catch (Exception e) {
+            log.error("Failed to compact member roles", e);
+        }
+    }
+
+    private long deleteGuild(long guildId) {
+        long deleted = 0;
+        int batch;
+        do {
+            batch = bulkRepository.deleteByGuild(guildId, bulkRepository.batchSize());
+            deleted += batch;
+        } while (batch >= bulkRepository.batchSize());
+        fingerprints.forgetGuild(guildId);
+        return deleted;
+    }
+
+    private long deleteExpired(Guild guild) {
+        Integer guildRetention = guildSettingsCache.get(guild).getMemberRolesRetentionDays();
+        int retentionDays = guildRetention != null ? guildRetention : properties.retentionDays();
+        if (retentionDays <= 0) {
+            return 0;
+        }
+
+        long guildId = guild.getIdLong();
+        Instant cutoff = Instant.now().minus(Duration.ofDays(retentionDays));
+        long deleted = 0;
+        long afterUserId = 0;
+        long[] stale;
+        do {
+            stale = bulkRepository.findUserIdsLastSeenBefore(guildId, cutoff, afterUserId, bulkRepository.batchSize());
+            if (stale.length == 0) {
+                break;
+            }
+            afterUserId = stale[stale.length - 1];
+
+            //members that are still around are just not written to when nothing about them changes
+            long[] departed = Arrays.stream(stale).filter(userId -> guild.getMemberById(userId) == null).toArray();
+            if (departed.length > 0) {
+                deleted += bulkRepository.deleteUsers(guildId, departed);
+                for (long userId : departed) {
+                    fingerprints.forget(guildId, userId);
+                    departedMembers.forget(guildId, userId);
+                }
+            }
+        } while (stale.length >= bulkRepository.batchSize());
+        return deleted;
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        MetricsSource.counter(out, "icu_member_roles_compactions_total", "", runs.sum());
+        MetricsSource.counter(out, "icu_member_roles_compacted_rows_total", "reason=\"left_guild\"", leftGuildRowsDeleted.sum());
+        MetricsSource.counter(out, "icu_member_roles_compacted_rows_total", "reason=\"retention\"", expiredRowsDeleted.sum());
+    }
+}
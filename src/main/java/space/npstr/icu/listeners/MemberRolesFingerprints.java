@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.jspecify.annotations.Nullable;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.metrics.MetricsSource;
+
+/**
+ * Remembers a fingerprint of the roles and nickname that are stored for each member, so that member events which do
+ * not change anything can skip the database, and those that do can write without reading first.
+ * <p>
+ * Only holds members whose row is known to match, a member without a fingerprint always counts as changed.
+ */
+@Component
+public class MemberRolesFingerprints implements MetricsSource {
+
+    private final ConcurrentHashMap<Long, FingerprintMap> guilds = new ConcurrentHashMap<>();
+    private final LongAdder unchanged = new LongAdder();
+    private final LongAdder changed = new LongAdder();
+
+    /**
+     * @param sortedRoleIds role ids as stored, sorted
+     */
+    public static long fingerprint(long[] sortedRoleIds, @Nullable String nickname) {
+        long hash = sortedRoleIds.length;
+        for (long roleId : sortedRoleIds) {
+            hash = mix(hash ^ roleId);
+        }
+        if (nickname == null) {
+            return mix(hash ^ -1);
+        }
+        //the chars go through the mixing four at a time, String#hashCode collides far too easily, like "Aa" and "BB"
+        hash = mix(hash ^ nickname.length());
+        int length = nickname.length();
+        for (int i = 0; i < length; i += 4) {
+            long chunk = 0;
+            for (int j = i; j < Math.min(i + 4, length); j++) {
+                chunk = chunk << 16 | nickname.charAt(j);
+            }
+            hash = mix(hash ^ chunk);
+        }
+        return hash;
+    }
+
+    //finalizer of splitmix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return true if the fingerprint differs from the one remembered for the member, or none is remembered
+     */
+    public boolean hasChanged(long guildId, long userId, long fingerprint) {
+        FingerprintMap map = guilds.get(guildId);
+        boolean hasChanged = map == null || !map.matches(userId, fingerprint);
+        (hasChanged ? changed : unchanged).increment();
+        return hasChanged;
+    }
+
+    /**
+     * Remember the fingerprint of a member after their row has been written or read.
+     */
+    public void remember(long guildId, long userId, long fingerprint) {
+        guilds.computeIfAbsent(guildId, __ -> new FingerprintMap()).put(userId, fingerprint);
+    }
+
+    /**
+     * To be called when the row of a member is changed by other means than the member events.
+     */
+    public void forget(long guildId, long userId) {
+        FingerprintMap map = guilds.get(guildId);
+        if (map != null) {
+            map.remove(userId);
+        }
+    }
+
+    public void forgetGuild(long guildId) {
+        guilds.remove(guildId);
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        long remembered = 0;
+        for (FingerprintMap map : guilds.values()) {
+            remembered += map.size();
+        }
+        MetricsSource.gauge(out, "icu_member_roles_fingerprints", "", remembered);
+        MetricsSource.counter(out, "icu_member_roles_updates_total", "result=\"unchanged\"", unchanged.sum());
+        MetricsSource.counter(out, "icu_member_roles_updates_total", "result=\"changed\"", changed.sum());
+    }
+
+    /**
+     * Open addressing map of user id to fingerprint, on two primitive arrays. User ids are snowflakes and never 0,
+     * which marks a free slot.
+     */
+    private static class FingerprintMap {
+
+        private long[] keys = new long[16];
+        private long[] values = new long[16];
+        private int size;
+
+        private synchronized boolean matches(long userId, long fingerprint) {
+            int slot = slot(keys, userId);
+            return keys[slot] == userId && values[slot] == fingerprint;
+        }
+
+        private synchronized void put(long userId, long fingerprint) {
+            int slot = slot(keys, userId);
+            if (keys[slot] != userId) {
+                keys[slot] = userId;
+                if (++size * 2 > keys.length) {
+                    values[slot] = fingerprint;
+                    grow();
+                    return;
+                }
+            }
+            values[slot] = fingerprint;
+        }
+
+        private synchronized void remove(long userId) {
+            int slot = slot(keys, userId);
+            if (keys[slot] != userId) {
+                return;
+            }
+            keys[slot] = 0;
+            size--;
+            //shift back the entries following in the same cluster, so that lookups do not stop at the gap
+            int mask = keys.length - 1;
+            int gap = slot;
+            for (int i = (slot + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+                int home = home(keys[i], mask);
+                if (((i - home) & mask) >= ((i - gap) & mask)) {
+                    keys[gap] = keys[i];
+                    values[gap] = values[i];
+                    keys[i] = 0;
+                    gap = i;
+                }
+            }
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(keys, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        //the slot holding the key, or the free slot where it would go
+        private static int slot(long[] keys, long key) {
+            int mask = keys.length - 1;
+            int i = home(key, mask);
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private static int home(long key, int mask) {
+            return (int) mix(key) & mask;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import javax.sql.DataSource;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.db.entities.MemberRoles;
+import space.npstr.icu.db.entities.MemberRolesBulkRepository;
+import space.npstr.icu.db.entities.MemberRolesBulkRepository.Row;
+
+/**
+ * Brings the stored roles of all members of a guild up to date in bulk: one query reads the stored rows of the guild,
+ * the diff against the member cache is computed in memory, and only changed rows are written, in batches.
+ * <p>
+ * Snapshots run on a pool of workers, sized to half of the database connection pool so that event processing still
+ * gets connections while shards start up. Only reading the member cache and diffing it hops onto the serial executor of
+ * the guild, so it lines up with the events of the guild: changed rows are handed to the {@link MemberRolesWriteBehind}
+ * there, where newer rows of later events replace them, and are then written from the worker. Reading and writing the
+ * database never holds up the events of the guild.
+ */
+@Component
+public class MemberRolesSnapshotter implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(MemberRolesSnapshotter.class);
+
+    private static final int DEFAULT_WORKERS = 4;
+
+    private final MemberRolesBulkRepository bulkRepository;
+    private final MemberRolesFingerprints fingerprints;
+    private final MemberRolesWriteBehind writeBehind;
+    private final ExecutorService workers;
+    //shard id -> snapshot in progress
+    private final ConcurrentHashMap<Integer, ShardSnapshot> running = new ConcurrentHashMap<>();
+
+    public MemberRolesSnapshotter(MemberRolesBulkRepository bulkRepository, MemberRolesFingerprints fingerprints,
+                                  MemberRolesWriteBehind writeBehind, DataSource dataSource) {
+        this.bulkRepository = bulkRepository;
+        this.fingerprints = fingerprints;
+        this.writeBehind = writeBehind;
+
+        int poolSize = dataSource instanceof HikariDataSource hikari ? hikari.getMaximumPoolSize() : DEFAULT_WORKERS * 2;
+        int workerCount = Math.max(1, poolSize / 2);
+        this.workers = Executors.newFixedThreadPool(workerCount,
+            Thread.ofPlatform().name("member-roles-snapshot-", 0).daemon().factory()
+        );
+        log.info("Snapshotting member roles with {} workers", workerCount);
+    }
+
+    /**
+     * Snapshot all guilds of the shard in the background, cancelling any snapshot of the shard that is still running.
+     *
+     * @param executors the serial executor of each guild
+     */
+    public void snapshot(JDA jda, Function<Guild, Executor> executors) {
+        List<Guild> guilds = jda.getGuildCache().asList();
+        ShardSnapshot snapshot = new ShardSnapshot(jda.getShardInfo(), guilds.size());
+        ShardSnapshot previous = running.put(snapshot.shardId(), snapshot);
+        if (previous != null) {
+            log.info("Cancelling the still running member roles snapshot of shard {}", previous.shardInfo);
+            previous.cancel();
+        }
+        log.info("Snapshotting roles of members in {} guilds on shard {}", guilds.size(), jda.getShardInfo());
+        if (guilds.isEmpty()) {
+            running.remove(snapshot.shardId(), snapshot);
+            return;
+        }
+        synchronized (snapshot.tasks) {
+            for (Guild guild : guilds) {
+                Executor guildExecutor = executors.apply(guild);
+                snapshot.tasks.add(workers.submit(() -> snapshot.run(guild, guildExecutor)));
+            }
+        }
+    }
+
+    /**
+     * Snapshot a single guild in the background.
+     *
+     * @param guildExecutor the serial executor of the guild
+     */
+    public void snapshot(Guild guild, Executor guildExecutor) {
+        workers.execute(() -> {
+            try {
+                snapshot(guild, guildExecutor, () -> false);
+            } catch (Exception e) {
+                log.error("Failed to snapshot member roles of guild {}", guild, e);
+            }
+        });
+    }
+
+    /**
+     * Stop the snapshot of the shard, guilds that are being snapshotted right now are finished.
+     */
+    public void cancel(JDA jda) {
+        ShardSnapshot snapshot = running.remove(jda.getShardInfo().getShardId());
+        if (snapshot != null) {
+            log.info("Cancelling member roles snapshot of shard {} after {} of {} guilds",
+                snapshot.shardInfo, snapshot.done.get(), snapshot.guildCount);
+            snapshot.cancel();
+        }
+    }
+
+    private Result snapshot(Guild guild, Executor guildExecutor, BooleanSupplier cancelled) throws Exception {
+        long started = System.nanoTime();
+        long guildId = guild.getIdLong();
+        Map<Long, Row> stored = bulkRepository.findAllByGuild(guildId);
+        if (cancelled.getAsBoolean()) {
+            return new Result(0, 0);
+        }
+        Result result = CompletableFuture.supplyAsync(() -> diff(guild, stored), guildExecutor).get();
+        writeBehind.flush(guildId);
+
+        log.debug("Snapshotted roles of {} members of guild {} in {}ms, {} rows written",
+            result.members(), guild, (System.nanoTime() - started) / 1_000_000, result.written());
+        return result;
+    }
+
+    //runs on the serial executor of the guild. a pending row is newer than the stored one, and any row of a later event
+    // replaces the ones queued here
+    private Result diff(Guild guild, Map<Long, Row> stored) {
+        long guildId = guild.getIdLong();
+        int members = 0;
+        int changed = 0;
+        for (Member member : guild.getMemberCache()) {
+            members++;
+            Row current = new Row(member.getIdLong(), MemberRoles.roleIdsOf(member.getRoles()), member.getNickname());
+            Row pending = writeBehind.pending(guildId, current.userId());
+            Row before = pending != null ? pending : stored.get(current.userId());
+            fingerprints.remember(guildId, current.userId(), fingerprint(current));
+            if (before != null && Arrays.equals(before.roleIds(), current.roleIds())
+                && Objects.equals(before.nickname(), current.nickname())) {
+                continue;
+            }
+            writeBehind.enqueue(guildId, current);
+            changed++;
+        }
+        return new Result(members, changed);
+    }
+
+    private static long fingerprint(Row row) {
+        return MemberRolesFingerprints.fingerprint(row.roleIds(), row.nickname());
+    }
+
+    @Override
+    public void destroy() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * @param members amount of members looked at
+     * @param written amount of rows that were missing or changed and have been written
+     */
+    public record Result(long members, long written) {}
+
+    private class ShardSnapshot {
+
+        private final JDA.ShardInfo shardInfo;
+        private final int guildCount;
+        private final int progressStep;
+        private final long started = System.nanoTime();
+        private final List<Future<?>> tasks = new ArrayList<>();
+        private final AtomicInteger done = new AtomicInteger();
+        private final LongAdder members = new LongAdder();
+        private final LongAdder written = new LongAdder();
+        private volatile boolean cancelled;
+
+        private ShardSnapshot(JDA.ShardInfo shardInfo, int guildCount) {
+            this.shardInfo = shardInfo;
+            this.guildCount = guildCount;
+            this.progressStep = Math.max(1, guildCount / 10);
+        }
+
+        private int shardId() {
+            return shardInfo.getShardId();
+        }
+
+        private void run(Guild guild, Executor guildExecutor) {
+            if (cancelled) {
+                return;
+            }
+            try {
+                Result result = snapshot(guild, guildExecutor, () -> cancelled);
+                members.add(result.members());
+                written.add(result.written());
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                log.error("Failed to snapshot member roles of guild {}", guild, e);
+            }
+
+            int doneCount = done.incrementAndGet();
+            if (doneCount == guildCount) {
+                running.remove(shardId(), this);
+                long millis = Math.max(1, (System.nanoTime() - started) / 1_000_000);
+                log.info("Snapshotted roles of {} members on shard {} in {}ms ({} members/s), {} rows written ({} rows/s)",
+                    members.sum(), shardInfo, millis, members.sum() * 1000 / millis,
+                    written.sum(), written.sum() * 1000 / millis);
+            } else if (doneCount % progressStep == 0) {
+                log.info("Snapshotted roles in {} of {} guilds on shard {}", doneCount, guildCount, shardInfo);
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            synchronized (tasks) {
+                for (Future<?> task : tasks) {
+                    task.cancel(false);
+                }
+            }
+        }
+    }
+}
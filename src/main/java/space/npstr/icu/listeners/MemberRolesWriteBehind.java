@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.db.entities.MemberRolesBulkRepository;
+import space.npstr.icu.db.entities.MemberRolesBulkRepository.Row;
+import space.npstr.icu.db.entities.MemberRolesProperties;
+import space.npstr.icu.metrics.MetricsSource;
+
+/**
+ * Collects changed member roles and writes them in batches, once enough of them are pending or the flush interval has
+ * passed. Repeated changes of the same member before a flush coalesce into a single write of the latest state.
+ * <p>
+ * Rows that fail to be written are queued again for the next flush, unless a newer row of the member has been queued in
+ * the meantime, and are dropped after {@link #MAX_ATTEMPTS} failed writes.
+ * <p>
+ * Anything that reads stored roles of a member or guild has to {@link #flush(long, long)} or {@link #flush(long)}
+ * them first.
+ */
+@Component
+public class MemberRolesWriteBehind implements MetricsSource, DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(MemberRolesWriteBehind.class);
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final MemberRolesBulkRepository bulkRepository;
+    private final MemberRolesFingerprints fingerprints;
+    private final int flushSize;
+    private final ScheduledExecutorService flusher;
+
+    //guild id -> user id -> latest row
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<Long, Pending>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    //held while rows taken out of pending are being written, so a flush of a single member can wait for them to land
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public MemberRolesWriteBehind(MemberRolesBulkRepository bulkRepository, MemberRolesFingerprints fingerprints,
+                                  MemberRolesProperties properties) {
+        this.bulkRepository = bulkRepository;
+        this.fingerprints = fingerprints;
+        this.flushSize = bulkRepository.batchSize();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("member-roles-flusher").daemon().factory()
+        );
+        long interval = Math.max(1, properties.flushInterval().toMillis());
+        this.flusher.scheduleWithFixedDelay(this::flushAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue the row of a member to be written, replacing any pending row of the same member.
+     */
+    public void enqueue(long guildId, Row row) {
+        enqueued.increment();
+        Pending replaced = pending.computeIfAbsent(guildId, __ -> new ConcurrentHashMap<>()).put(row.userId(), new Pending(row, 0));
+        if (replaced == null && pendingCount.incrementAndGet() >= flushSize && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flushAll);
+        }
+    }
+
+    /**
+     * @return the row of a member that is waiting to be written, if there is one
+     */
+    @Nullable
+    public Row pending(long guildId, long userId) {
+        Map<Long, Pending> rows = pending.get(guildId);
+        Pending row = rows == null ? null : rows.get(userId);
+        return row == null ? null : row.row();
+    }
+
+    /**
+     * Write the pending row of a member right away, if there is one.
+     */
+    public void flush(long guildId, long userId) {
+        writeLock.lock();
+        try {
+            Map<Long, Pending> rows = pending.get(guildId);
+            Pending row = rows == null ? null : rows.remove(userId);
+            if (row == null) {
+                return;
+            }
+            pendingCount.decrementAndGet();
+            write(guildId, List.of(row));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Write the pending rows of all members of a guild right away.
+     */
+    public void flush(long guildId) {
+        ConcurrentHashMap<Long, Pending> rows = pending.get(guildId);
+        if (rows != null) {
+            flush(guildId, rows);
+        }
+    }
+
+    private void flushAll() {
+        flushRequested.set(false);
+        try {
+            for (Map.Entry<Long, ConcurrentHashMap<Long, Pending>> guild : pending.entrySet()) {
+                flush(guild.getKey(), guild.getValue());
+            }
+        } catch (Exception e) {
+            log.error("Failed to flush member roles", e);
+        }
+    }
+
+    private void flush(long guildId, ConcurrentHashMap<Long, Pending> guildRows) {
+        writeLock.lock();
+        try {
+            List<Pending> rows = new ArrayList<>();
+            for (Map.Entry<Long, Pending> entry : guildRows.entrySet()) {
+                //only take the row if it was not replaced in the meantime, a newer one is left for the next flush
+                if (guildRows.remove(entry.getKey(), entry.getValue())) {
+                    rows.add(entry.getValue());
+                }
+            }
+            if (!rows.isEmpty()) {
+                pendingCount.addAndGet(-rows.size());
+                write(guildId, rows);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void write(long guildId, List<Pending> rows) {
+        try {
+            bulkRepository.upsert(guildId, rows.stream().map(Pending::row).toList());
+            written.add(rows.size());
+        } catch (Exception e) {
+            log.error("Failed to write roles of {} members of guild {}", rows.size(), guildId, e);
+            failed.add(rows.size());
+            requeue(guildId, rows);
+        }
+    }
+
+    //a row that a newer one replaced in the meantime is not needed anymore
+    private void requeue(long guildId, List<Pending> rows) {
+        ConcurrentHashMap<Long, Pending> guildRows = pending.computeIfAbsent(guildId, __ -> new ConcurrentHashMap<>());
+        int dropping = 0;
+        for (Pending row : rows) {
+            long userId = row.row().userId();
+            if (row.attempts() + 1 >= MAX_ATTEMPTS) {
+                //the fingerprints claim these are stored, drop them so that the next change of these members is written
+                fingerprints.forget(guildId, userId);
+                dropping++;
+            } else if (guildRows.putIfAbsent(userId, new Pending(row.row(), row.attempts() + 1)) == null) {
+                pendingCount.incrementAndGet();
+            }
+        }
+        if (dropping > 0) {
+            dropped.add(dropping);
+            log.warn("Dropping roles of {} members of guild {} after {} failed writes", dropping, guildId, MAX_ATTEMPTS);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for the member roles flusher");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        MetricsSource.gauge(out, "icu_member_roles_pending_writes", "", pendingCount.get());
+        MetricsSource.counter(out, "icu_member_roles_enqueued_writes_total", "", enqueued.sum());
+        MetricsSource.counter(out, "icu_member_roles_written_rows_total", "", written.sum());
+        MetricsSource.counter(out, "icu_member_roles_failed_rows_total", "", failed.sum());
+        MetricsSource.counter(out, "icu_member_roles_dropped_rows_total", "", dropped.sum());
+    }
+
+    /**
+     * @param attempts how often writing the row has failed already
+     */
+    private record Pending(Row row, int attempts) {}
+}
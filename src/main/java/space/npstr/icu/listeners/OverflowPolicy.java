@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+/**
+ * What to do when a task is submitted to a guild mailbox that is at capacity.
+ */
+public enum OverflowPolicy {
+    /**
+     * Drop the oldest queued task of this policy that was submitted by the same listener to make room. Tasks of other
+     * listeners are never dropped for it. Use for events where only the most recent ones matter, and losing some during
+     * floods is acceptable.
+     */
+    DROP_OLDEST,
+    /**
+     * Never drop, the mailbox grows beyond its capacity. Use for events that must not be lost.
+     */
+    NEVER_DROP,
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * @param burstJoins        joins within 10 seconds that count as a raid, if enough of them are young accounts
+ * @param sustainedJoins    joins within 60 seconds that count as a raid, if enough of them are young accounts
+ * @param youngAccountAge   accounts younger than this count as young
+ * @param youngAccountShare share of young accounts among the joins of the last 60 seconds required for a raid, 0 to
+ *                          ignore the account age
+ * @param cooldown          how long a guild stays in raid mode after the thresholds were last crossed
+ */
+@ConfigurationProperties(prefix = "app.raid-detection")
+public record RaidDetectionProperties(
+	@DefaultValue("10") int burstJoins,
+	@DefaultValue("30") int sustainedJoins,
+	@DefaultValue("7d") Duration youngAccountAge,
+	@DefaultValue("0.5") double youngAccountShare,
+	@DefaultValue("2m") Duration cooldown
+) {}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.utils.TimeUtil;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.metrics.MetricsSource;
+
+/**
+ * Watches the join rate of guilds, and puts a guild into raid mode when many accounts join in a short time and enough
+ * of them are young. The age of an account is read from its id, so recording a join needs no request to Discord.
+ * <p>
+ * Each guild that saw joins in the last minute has a ring of per second counters, updated without locks. A raid ends
+ * once the thresholds have not been crossed for the configured cooldown, which is checked periodically.
+ */
+@Component
+public class RaidDetector implements MetricsSource, DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(RaidDetector.class);
+
+    private static final int BURST_SECONDS = 10;
+    private static final int WINDOW_SECONDS = 60;
+
+    private final RaidDetectionProperties properties;
+    private final ConcurrentHashMap<Long, JoinWindow> windows = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private volatile Consumer<Raid> onRaidEnded = __ -> {};
+
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder youngJoins = new LongAdder();
+    private final LongAdder raidsStarted = new LongAdder();
+
+    public RaidDetector(RaidDetectionProperties properties) {
+        this.properties = properties;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("raid-detector").daemon().factory()
+        );
+        this.scheduler.scheduleWithFixedDelay(this::sweep, 5, 5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Count a join. Cheap enough to be called directly on the event thread.
+     *
+     * @return the raid if this join started one, null otherwise
+     */
+    @Nullable
+    public Raid recordJoin(Guild guild, long userId) {
+        long now = System.currentTimeMillis();
+        long nowSecond = now / 1000;
+        boolean young = isYoung(userId, now);
+        joins.increment();
+        if (young) {
+            youngJoins.increment();
+        }
+
+        JoinWindow window = windows.computeIfAbsent(guild.getIdLong(), __ -> new JoinWindow());
+        window.record(nowSecond, young);
+        if (window.raidSince.get() != 0) {
+            window.raidJoins.incrementAndGet();
+            if (young) {
+                window.raidYoungJoins.incrementAndGet();
+            }
+        }
+
+        Rates rates = window.rates(nowSecond);
+        boolean busy = rates.burstJoins >= properties.burstJoins() || rates.joins >= properties.sustainedJoins();
+        boolean youngEnough = rates.youngJoins >= properties.youngAccountShare() * rates.joins;
+        if (!busy || !youngEnough) {
+            return null;
+        }
+        window.lastTriggered = now;
+        if (!window.raidSince.compareAndSet(0, now)) {
+            return null;
+        }
+        //the joins that tripped the detector are part of the raid
+        window.raidJoins.set(rates.joins);
+        window.raidYoungJoins.set(rates.youngJoins);
+        raidsStarted.increment();
+        log.info("Raid detected in guild {}: {} joins in the last {}s, {} of them young accounts",
+            guild, rates.joins, WINDOW_SECONDS, rates.youngJoins);
+        return new Raid(guild.getIdLong(), now, rates.joins, rates.youngJoins);
+    }
+
+    public boolean isRaid(Guild guild) {
+        JoinWindow window = windows.get(guild.getIdLong());
+        return window != null && window.raidSince.get() != 0;
+    }
+
+    /**
+     * @param at epoch millis, within the last minute
+     * @return joins of the guild within the 10 seconds up to the provided time
+     */
+    public long getBurstJoins(Guild guild, long at) {
+        JoinWindow window = windows.get(guild.getIdLong());
+        return window != null ? window.rates(at / 1000).burstJoins : 0;
+    }
+
+    /**
+     * @param onRaidEnded called with the totals of a raid once it is over, on the thread of the detector
+     */
+    void onRaidEnded(Consumer<Raid> onRaidEnded) {
+        this.onRaidEnded = onRaidEnded;
+    }
+
+    private boolean isYoung(long userId, long now) {
+        long createdAt = (userId >>> TimeUtil.TIMESTAMP_OFFSET) + TimeUtil.DISCORD_EPOCH;
+        return now - createdAt < properties.youngAccountAge().toMillis();
+    }
+
+    private void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            long cooldown = properties.cooldown().toMillis();
+            for (Map.Entry<Long, JoinWindow> entry : windows.entrySet()) {
+                JoinWindow window = entry.getValue();
+                long raidSince = window.raidSince.get();
+                if (raidSince != 0) {
+                    if (now - window.lastTriggered >= cooldown && window.raidSince.compareAndSet(raidSince, 0)) {
+                        Raid raid = new Raid(entry.getKey(), raidSince, window.raidJoins.get(), window.raidYoungJoins.get());
+                        log.info("Raid in guild {} ended after {}s with {} joins", raid.guildId(),
+                            (now - raidSince) / 1000, raid.joins());
+                        onRaidEnded.accept(raid);
+                    }
+                } else if (window.rates(now / 1000).joins == 0) {
+                    //quiet guilds do not keep their counters around. a join racing with this is not counted.
+                    windows.remove(entry.getKey(), window);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Failed to sweep join windows", e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        long raids = windows.values().stream().filter(window -> window.raidSince.get() != 0).count();
+        MetricsSource.gauge(out, "icu_raid_detector_guilds", "", windows.size());
+        MetricsSource.gauge(out, "icu_raid_detector_raids", "", raids);
+        MetricsSource.counter(out, "icu_raid_detector_raids_total", "", raidsStarted.sum());
+        MetricsSource.counter(out, "icu_raid_detector_joins_total", "account=\"young\"", youngJoins.sum());
+        MetricsSource.counter(out, "icu_raid_detector_joins_total", "account=\"old\"", joins.sum() - youngJoins.sum());
+    }
+
+    /**
+     * @param since      epoch millis of when the raid was detected
+     * @param joins      joins during the raid, including the ones that got it detected
+     * @param youngJoins how many of those joins were young accounts
+     */
+    public record Raid(long guildId, long since, long joins, long youngJoins) {}
+
+    private record Rates(long burstJoins, long joins, long youngJoins) {}
+
+    /**
+     * Joins of a guild during the last minute, one bucket per second. A bucket packs the epoch second it counts for
+     * into the upper 32 bits, its joins into the next 16 and its young joins into the lowest 16 bits, so it can be
+     * updated with a single compare and set. Buckets of earlier seconds are overwritten when their slot comes around.
+     */
+    private static final class JoinWindow {
+
+        private static final long MAX_COUNT = 0xFFFF;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(WINDOW_SECONDS);
+        //epoch millis of when the current raid was detected, 0 outside of raids
+        private final AtomicLong raidSince = new AtomicLong();
+        private final AtomicLong raidJoins = new AtomicLong();
+        private final AtomicLong raidYoungJoins = new AtomicLong();
+        private volatile long lastTriggered;
+
+        private void record(long nowSecond, boolean young) {
+            int slot = (int) (nowSecond % WINDOW_SECONDS);
+            long stamp = nowSecond & 0xFFFFFFFFL;
+            while (true) {
+                long current = buckets.get(slot);
+                long joins = 1;
+                long youngJoins = young ? 1 : 0;
+                if (current >>> 32 == stamp) {
+                    joins = Math.min(MAX_COUNT, (current >>> 16 & MAX_COUNT) + joins);
+                    youngJoins = Math.min(MAX_COUNT, (current & MAX_COUNT) + youngJoins);
+                }
+                if (buckets.compareAndSet(slot, current, stamp << 32 | joins << 16 | youngJoins)) {
+                    return;
+                }
+            }
+        }
+
+        private Rates rates(long nowSecond) {
+            long stamp = nowSecond & 0xFFFFFFFFL;
+            long burstJoins = 0;
+            long joins = 0;
+            long youngJoins = 0;
+            for (int slot = 0; slot < WINDOW_SECONDS; slot++) {
+                long bucket = buckets.get(slot);
+                long age = stamp - (bucket >>> 32);
+                if (age < 0 || age >= WINDOW_SECONDS) {
+                    continue;
+                }
+                long bucketJoins = bucket >>> 16 & MAX_COUNT;
+                joins += bucketJoins;
+                youngJoins += bucket & MAX_COUNT;
+                if (age < BURST_SECONDS) {
+                    burstJoins += bucketJoins;
+                }
+            }
+            return new Rates(burstJoins, joins, youngJoins);
+        }
+    }
+}
@@ -27,7 +27,7 @@ import net.dv8tion.jda.api.entities.channel.middleman.GuildMessageChannel;
 import net.dv8tion.jda.api.events.message.react.MessageReactionAddEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import org.springframework.stereotype.Component;
-import space.npstr.icu.db.entities.GuildSettingsRepository;
+import space.npstr.icu.db.entities.GuildSettingsCache;
 import space.npstr.icu.db.entities.ReactionBan;
 import space.npstr.icu.db.entities.ReactionBanRepository;
 import space.npstr.icu.db.entities.ReportingChannelFetcher;
@@ -38,13 +38,13 @@ import space.npstr.icu.db.entities.ReportingChannelFetcher;
 @Component
 public class ReactionBanListener extends ListenerAdapter {
 
-    private final GuildSettingsRepository guildSettingsRepo;
+    private final GuildSettingsCache guildSettingsCache;
     private final ReactionBanRepository reactionBanRepo;
     private final ReportingChannelFetcher reportingChannelFetcher;
 
 
-    public ReactionBanListener(GuildSettingsRepository guildSettingsRepo, ReactionBanRepository reactionBanRepo, ReportingChannelFetcher reportingChannelFetcher) {
-        this.guildSettingsRepo = guildSettingsRepo;
+    public ReactionBanListener(GuildSettingsCache guildSettingsCache, ReactionBanRepository reactionBanRepo, ReportingChannelFetcher reportingChannelFetcher) {
+        this.guildSettingsCache = guildSettingsCache;
         this.reactionBanRepo = reactionBanRepo;
         this.reportingChannelFetcher = reportingChannelFetcher;
     }
@@ -71,7 +71,7 @@ public class ReactionBanListener extends ListenerAdapter {
         GuildMessageChannel channel = event.getChannel().asGuildMessageChannel();
         if (!guild.getSelfMember().hasPermission(channel, Permission.MESSAGE_MANAGE)) {
             //try to report the issue
-            Long reportingChannelId = guildSettingsRepo.findOrCreateByGuild(guild).getReportingChannelId();
+            Long reportingChannelId = guildSettingsCache.get(guild).getReportingChannelId();
             if (reportingChannelId != null) {
                 TextChannel reportingChannel = guild.getTextChannelById(reportingChannelId);
                 if (reportingChannel != null) {
@@ -88,7 +88,7 @@ public class ReactionBanListener extends ListenerAdapter {
     private void issueBan(Guild guild, User user, ReactionBan reactionBan) {
         if (!guild.getSelfMember().hasPermission(Permission.BAN_MEMBERS)) {
             //try to report the issue
-            Long reportingChannelId = guildSettingsRepo.findOrCreateByGuild(guild).getReportingChannelId();
+            Long reportingChannelId = guildSettingsCache.get(guild).getReportingChannelId();
             if (reportingChannelId != null) {
                 TextChannel reportingChannel = guild.getTextChannelById(reportingChannelId);
                 if (reportingChannel != null) {
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import net.dv8tion.jda.api.utils.FileUpload;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.metrics.MetricsSource;
+
+/**
+ * Collects the reports for a channel for a short while and sends them together, packed into as few messages as
+ * possible, so that a burst of events like a raid does not run into the rate limits of the channel. A batch that would
+ * take more than the configured amount of messages is sent as a single attachment instead.
+ * <p>
+ * A batch is sent once the flush delay has passed since its first report, or right away once it is large enough. Reports
+ * are only split across messages if they are too long on their own. A batch is sent once and then removed, the next
+ * report of the channel starts a new one, so channels that stopped reporting do not stay around.
+ */
+@Component
+public class ReportAggregator implements MetricsSource, DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ReportAggregator.class);
+
+    private static final String FENCE = "```";
+
+    private final ReportProperties properties;
+    private final ObjectProvider<ShardManager> shardManager;
+    private final int maxBatchLength;
+    private final ConcurrentHashMap<Long, ChannelBatch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder reports = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder attachmentsSent = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public ReportAggregator(ReportProperties properties, ObjectProvider<ShardManager> shardManager) {
+        this.properties = properties;
+        this.shardManager = shardManager;
+        this.maxBatchLength = Math.max(1, properties.maxMessages()) * Message.MAX_CONTENT_LENGTH;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("report-aggregator").daemon().factory()
+        );
+    }
+
+    /**
+     * Queue a report for the channel. Reports longer than a single message are split up.
+     */
+    public void report(TextChannel channel, String report) {
+        reports.increment();
+        long channelId = channel.getIdLong();
+        ChannelBatch batch;
+        Added added;
+        //a batch that has been drained in the meantime takes no more reports, it is replaced by a new one
+        while (true) {
+            batch = batches.computeIfAbsent(channelId, __ -> new ChannelBatch());
+            added = batch.add(report);
+            if (added != null) {
+                break;
+            }
+            batches.remove(channelId, batch);
+        }
+
+        ChannelBatch toFlush = batch;
+        if (added.started()) {
+            scheduler.schedule(() -> flush(channelId, toFlush), properties.flushDelay().toMillis(), TimeUnit.MILLISECONDS);
+        } else if (added.length() >= maxBatchLength) {
+            scheduler.execute(() -> flush(channelId, toFlush));
+        }
+    }
+
+    //only the first flush of a batch sends it, the channel is looked up right then so that reports of a shard that
+    // has been restarted in the meantime still reach it
+    private void flush(long channelId, ChannelBatch batch) {
+        try {
+            List<String> drained = batch.drain();
+            if (drained.isEmpty()) {
+                return;
+            }
+            batches.remove(channelId, batch);
+            TextChannel channel = shardManager.getObject().getTextChannelById(channelId);
+            if (channel == null || !channel.canTalk()) {
+                dropped.add(drained.size());
+                log.warn("Dropping {} reports for unavailable channel {}", drained.size(), channelId);
+                return;
+            }
+
+            List<String> messages = pack(drained);
+            boolean canAttach = channel.getGuild().getSelfMember().hasPermission(channel, Permission.MESSAGE_ATTACH_FILES);
+            if (messages.size() > properties.maxMessages() && canAttach) {
+                byte[] content = String.join("\n", drained).getBytes(StandardCharsets.UTF_8);
+                channel.sendMessage(drained.size() + " reports, attached since they would take " + messages.size() + " messages")
+                    .addFiles(FileUpload.fromData(content, "reports.txt"))
+                    .queue(null, t -> onSendFailed(channelId, t));
+                attachmentsSent.increment();
+            } else {
+                for (String message : messages) {
+                    channel.sendMessage(message).queue(null, t -> onSendFailed(channelId, t));
+                }
+                messagesSent.add(messages.size());
+            }
+        } catch (Exception e) {
+            log.error("Failed to send reports to channel {}", channelId, e);
+        }
+    }
+
+    private void onSendFailed(long channelId, Throwable t) {
+        sendFailures.increment();
+        log.warn("Failed to send reports to channel {}", channelId, t);
+    }
+
+    //packs the reports into as few messages as possible, without splitting any report that fits into a message
+    private static List<String> pack(List<String> reports) {
+        List<String> messages = new ArrayList<>();
+        StringBuilder message = new StringBuilder();
+        for (String report : reports) {
+            if (!message.isEmpty() && message.length() + 1 + report.length() > Message.MAX_CONTENT_LENGTH) {
+                messages.add(message.toString());
+                message.setLength(0);
+            }
+            if (report.length() > Message.MAX_CONTENT_LENGTH) {
+                messages.addAll(split(report));
+                continue;
+            }
+            if (!message.isEmpty()) {
+                message.append('\n');
+            }
+            message.append(report);
+        }
+        if (!message.isEmpty()) {
+            messages.add(message.toString());
+        }
+        return messages;
+    }
+
+    //splits a report that is too long for a single message, on line breaks where possible. a code block that is open
+    // at a cut is closed there and opened again in the next message, so the rest is not rendered as plain text
+    private static List<String> split(String report) {
+        List<String> parts = new ArrayList<>();
+        String rest = report;
+        //where the text of the report starts, after a code block opened again at the start of rest
+        int start = 0;
+        while (rest.length() > Message.MAX_CONTENT_LENGTH) {
+            int limit = Message.MAX_CONTENT_LENGTH - FENCE.length() - 1;
+            int cut = rest.lastIndexOf('\n', limit);
+            boolean atLineBreak = cut > start;
+            String part = rest.substring(0, atLineBreak ? cut : limit);
+            boolean inCodeBlock = countFences(part) % 2 == 1;
+            parts.add(inCodeBlock ? part + "\n" + FENCE : part);
+            start = inCodeBlock ? FENCE.length() + 1 : 0;
+            rest = (inCodeBlock ? FENCE + "\n" : "") + rest.substring(atLineBreak ? cut + 1 : limit);
+        }
+        parts.add(rest);
+        return parts;
+    }
+
+    private static int countFences(String text) {
+        int count = 0;
+        int index = text.indexOf(FENCE);
+        while (index >= 0) {
+            count++;
+            index = text.indexOf(FENCE, index + FENCE.length());
+        }
+        return count;
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        MetricsSource.counter(out, "icu_reports_total", "", reports.sum());
+        MetricsSource.counter(out, "icu_reports_sent_total", "kind=\"message\"", messagesSent.sum());
+        MetricsSource.counter(out, "icu_reports_sent_total", "kind=\"attachment\"", attachmentsSent.sum());
+        MetricsSource.counter(out, "icu_reports_send_failures_total", "", sendFailures.sum());
+        MetricsSource.counter(out, "icu_reports_dropped_total", "", dropped.sum());
+        MetricsSource.gauge(out, "icu_reports_pending_channels", "", batches.size());
+    }
+
+    /**
+     * @param started whether the report started the batch
+     * @param length  length of the batch with the report
+     */
+    private record Added(boolean started, int length) {}
+
+    private static final class ChannelBatch {
+
+        private final List<String> reports = new ArrayList<>();
+        private int length;
+        private boolean drained;
+
+        /**
+         * @return null if the batch has been drained already
+         */
+        @Nullable
+        private synchronized Added add(String report) {
+            if (drained) {
+                return null;
+            }
+            reports.add(report);
+            length += report.length() + 1;
+            return new Added(reports.size() == 1, length);
+        }
+
+        /**
+         * @return the reports of the batch, empty if it has been drained already
+         */
+        private synchronized List<String> drain() {
+            if (drained) {
+                return List.of();
+            }
+            drained = true;
+            List<String> result = List.copyOf(reports);
+            reports.clear();
+            return result;
+        }
+    }
+}
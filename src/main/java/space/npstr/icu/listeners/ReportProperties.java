@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.listeners;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * @param flushDelay      how long reports for a channel are collected before they are sent
+ * @param maxMessages     messages a batch of reports may take up, larger batches are sent as a single attachment
+ * @param banNoticeWindow how long bans of a user in other guilds are merged into the same notice of a guild
+ */
+@ConfigurationProperties(prefix = "app.reports")
+public record ReportProperties(
+	@DefaultValue("2s") Duration flushDelay,
+	@DefaultValue("3") int maxMessages,
+	@DefaultValue("10m") Duration banNoticeWindow
+) {}
@@ -17,25 +17,37 @@
 
 package space.npstr.icu.listeners;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.events.guild.GuildJoinEvent;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
 import net.dv8tion.jda.api.events.guild.member.update.GuildMemberUpdateNicknameEvent;
 import net.dv8tion.jda.api.events.session.ReadyEvent;
+import net.dv8tion.jda.api.events.session.SessionRecreateEvent;
+import net.dv8tion.jda.api.events.session.ShutdownEvent;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.support.TransactionTemplate;
-import space.npstr.icu.db.entities.GuildSettings;
-import space.npstr.icu.db.entities.GuildSettingsRepository;
+import space.npstr.icu.db.entities.GuildSettingsCache;
+import space.npstr.icu.db.entities.GuildSettingsSnapshot;
 import space.npstr.icu.db.entities.MemberRoles;
+import space.npstr.icu.db.entities.MemberRolesBulkRepository.Row;
+import space.npstr.icu.db.entities.MemberRolesProperties;
 import space.npstr.icu.db.entities.MemberRolesRepository;
 
 /**
@@ -46,14 +58,25 @@ public class RoleChangesListener extends ThreadedListener {
 
     private static final Logger log = LoggerFactory.getLogger(RoleChangesListener.class);
 
-    private final TransactionTemplate transactionTemplate;
-    private final GuildSettingsRepository guildSettingsRepo;
+    private final GuildSettingsCache guildSettingsCache;
     private final MemberRolesRepository memberRolesRepository;
+    private final MemberRolesWriteBehind writeBehind;
+    private final MemberRolesFingerprints fingerprints;
+    private final MemberRolesSnapshotter snapshotter;
+    private final DepartedMembers departedMembers;
+    private final MemberRolesProperties properties;
 
-    public RoleChangesListener(TransactionTemplate transactionTemplate, GuildSettingsRepository guildSettingsRepo, MemberRolesRepository memberRolesRepository) {
-        this.transactionTemplate = transactionTemplate;
-        this.guildSettingsRepo = guildSettingsRepo;
+    public RoleChangesListener(GuildExecutor guildExecutor, GuildSettingsCache guildSettingsCache, MemberRolesRepository memberRolesRepository,
+                               MemberRolesWriteBehind writeBehind, MemberRolesFingerprints fingerprints, MemberRolesSnapshotter snapshotter,
+                               DepartedMembers departedMembers, MemberRolesProperties properties) {
+        super(guildExecutor);
+        this.guildSettingsCache = guildSettingsCache;
         this.memberRolesRepository = memberRolesRepository;
+        this.writeBehind = writeBehind;
+        this.fingerprints = fingerprints;
+        this.snapshotter = snapshotter;
+        this.departedMembers = departedMembers;
+        this.properties = properties;
     }
 
     @Override
@@ -95,29 +118,62 @@ public class RoleChangesListener extends ThreadedListener {
             Collection<Role> roles = member.getRoles();
             log.debug("User {} left guild {}, with roles: {}", member, event.getGuild(), roles.isEmpty() ? "no roles" :
                     roles.stream().map(Object::toString).collect(Collectors.joining(", ")));
-            updateMember(member);
+            //always written, it marks when the member was last seen, which the retention of their roles is based on
+            departedMembers.remember(event.getGuild().getIdLong(), updateMember(member, true));
         });
     }
 
 
-    private void updateMember(Member member) {
-        transactionTemplate.executeWithoutResult(__ ->
-            memberRolesRepository.findOrCreateById(MemberRoles.key(member)).set(member)
-        );
+    // writes only if the roles or nickname differ from what was stored last, buffered and without reading the row first
+    private Row updateMember(Member member) {
+        return updateMember(member, false);
+    }
+
+    private Row updateMember(Member member, boolean force) {
+        long guildId = member.getGuild().getIdLong();
+        Row row = new Row(member.getIdLong(), MemberRoles.roleIdsOf(member.getRoles()), member.getNickname());
+        long fingerprint = MemberRolesFingerprints.fingerprint(row.roleIds(), row.nickname());
+        if (fingerprints.hasChanged(guildId, row.userId(), fingerprint) || force) {
+            fingerprints.remember(guildId, row.userId(), fingerprint);
+            writeBehind.enqueue(guildId, row);
+        }
+        return row;
+    }
+
+    // recently departed members are served from memory, anyone else from the database
+    @Nullable
+    private Row storedRoles(Member member) {
+        long guildId = member.getGuild().getIdLong();
+        Row departed = departedMembers.take(guildId, member.getIdLong());
+        if (departed != null) {
+            return departed;
+        }
+        writeBehind.flush(guildId, member.getIdLong());
+        return memberRolesRepository.findById(MemberRoles.key(member))
+            .map(memberRoles -> new Row(member.getIdLong(), memberRoles.getRoleIds(), memberRoles.getNickname()))
+            .orElse(null);
     }
 
     @Override
     public void onGuildMemberJoin(GuildMemberJoinEvent event) {
+        //the roles the member joined with, anything added later, by other bots for example, must not be overwritten
+        Set<Role> rolesAtJoin = Set.copyOf(event.getMember().getUnsortedRoles());
         getExecutor(event.getGuild()).execute(() -> {
-            MemberRoles memberRoles = memberRolesRepository.findById(new MemberRoles.MemberComposite(event.getMember())).orElse(null);
+            Row stored = storedRoles(event.getMember());
 
-            if (memberRoles == null) {
+            if (stored == null) {
                 log.debug("User {} joined guild {}, nothing to restore", event.getMember(), event.getGuild());
                 return;
             }
 
-            Collection<Role> roles = memberRoles.getRoles(__ -> event.getGuild());
-            String storedNick = memberRoles.getNickname();
+            Collection<Role> roles = new ArrayList<>(stored.roleIds().length);
+            for (long roleId : stored.roleIds()) {
+                Role role = event.getGuild().getRoleById(roleId);
+                if (role != null) {
+                    roles.add(role);
+                }
+            }
+            String storedNick = stored.nickname();
             log.debug("User {} joined guild {}, restoring nickname {} and roles: {}",
                     event.getMember(), event.getGuild(), storedNick,
                     roles.isEmpty()
@@ -135,7 +191,7 @@ public class RoleChangesListener extends ThreadedListener {
                 }
             }
 
-            GuildSettings guildSettings = guildSettingsRepo.findOrCreateByGuild(event.getGuild());
+            GuildSettingsSnapshot guildSettings = guildSettingsCache.get(event.getGuild());
             roles = roles.stream().filter(
                     role -> {
                         if (role.isManaged()) {
@@ -154,6 +210,11 @@ public class RoleChangesListener extends ThreadedListener {
                     }
             ).collect(Collectors.toSet());
 
+            if (properties.restore() == MemberRolesProperties.RestoreMode.BULK) {
+                restoreInBulk(event.getGuild(), event.getMember(), rolesAtJoin, roles);
+                return;
+            }
+
             // we space out adding roles like this, because bulk changes lead to race conditions with other bots who
             // apply roles on join (think dyno's managed mute role). the average user, especially any malicious one,
             // probably wont have many roles, so we can accept the higher ratelimit exhaustion as a trade off for safety
@@ -164,27 +225,57 @@ public class RoleChangesListener extends ThreadedListener {
         });
     }
 
+    // a bulk change sends the full role list of the member, which would undo roles that other bots applied since our
+    // view of the member was last updated. so we give them some time to act first, and only do the bulk change if the
+    // roles of the member did not change since the join, otherwise we fall back to spacing out the requests
+    private void restoreInBulk(Guild guild, Member member, Set<Role> rolesAtJoin, Collection<Role> roles) {
+        long userId = member.getIdLong();
+        Executor delayed = CompletableFuture.delayedExecutor(properties.restoreDelay().toMillis(), TimeUnit.MILLISECONDS, getExecutor(guild));
+        delayed.execute(() -> {
+            Member current = guild.getMemberById(userId);
+            if (current == null) {
+                log.debug("User {} left guild {} before their roles were restored", userId, guild);
+                return;
+            }
+            Set<Role> currentRoles = current.getUnsortedRoles();
+            List<Role> missing = roles.stream().filter(role -> !currentRoles.contains(role)).toList();
+            if (missing.isEmpty()) {
+                return;
+            }
+            if (!currentRoles.equals(rolesAtJoin)) {
+                log.info("Roles of member {} in guild {} changed since they joined, restoring roles one by one", current, guild);
+                missing.forEach(role -> guild.addRoleToMember(current, role).queue());
+                return;
+            }
+            guild.modifyMemberRoles(current, missing, List.of()).queue();
+        });
+    }
+
+    @Override
+    public void onGuildLeave(GuildLeaveEvent event) {
+        fingerprints.forgetGuild(event.getGuild().getIdLong());
+    }
+
     @Override
     public void onGuildJoin(GuildJoinEvent event) {
-        getExecutor(event.getGuild()).execute(() ->
-            event.getGuild().getMemberCache().stream().forEach(member ->
-                transactionTemplate.executeWithoutResult(__ ->
-                    memberRolesRepository.findOrCreateById(MemberRoles.key(member)).set(member)
-                )
-            )
-        );
+        snapshotter.snapshot(event.getGuild(), getExecutor(event.getGuild()));
     }
 
     @Override
     public void onReady(ReadyEvent event) {
-        DEFAULT_EXEC.execute(() ->
-            event.getJDA().getGuildCache().stream()
-                .flatMap(guild -> guild.getMemberCache().stream())
-                .forEach(member ->
-                    transactionTemplate.executeWithoutResult(__ ->
-                        memberRolesRepository.findOrCreateById(MemberRoles.key(member)).set(member)
-                    )
-                )
-        );
+        snapshotter.snapshot(event.getJDA(), this::getExecutor);
+    }
+
+    //a running snapshot is kept across disconnects: a resumed session replays the events that were missed, and an
+    // invalidated one ends up here, starting over with a fresh cache
+    @Override
+    public void onSessionRecreate(SessionRecreateEvent event) {
+        //events may have been missed while the session was gone
+        snapshotter.snapshot(event.getJDA(), this::getExecutor);
+    }
+
+    @Override
+    public void onShutdown(ShutdownEvent event) {
+        snapshotter.cancel(event.getJDA());
     }
 }
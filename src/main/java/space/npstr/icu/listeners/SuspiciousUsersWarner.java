@@ -18,52 +18,80 @@
 package space.npstr.icu.listeners;
 
 import java.time.OffsetDateTime;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
 import net.dv8tion.jda.api.events.guild.GuildBanEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
-import net.dv8tion.jda.api.exceptions.ErrorResponseException;
-import net.dv8tion.jda.api.requests.ErrorResponse;
 import net.dv8tion.jda.api.sharding.ShardManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Component;
 import space.npstr.icu.AuditLogUtil;
-import space.npstr.icu.Launcher;
 import space.npstr.icu.db.entities.ReportingChannelFetcher;
+import space.npstr.icu.discord.BanMirror;
+import space.npstr.icu.suspicion.SuspicionScorer;
 
 /**
  * Created by napster on 10.03.18.
  * <p>
- * Warns guilds about users being banned in other guilds, or users with a fresh account joining.
+ * Warns guilds about users being banned in other guilds, or suspicious users joining, as scored by the
+ * {@link SuspicionScorer}.
+ * During a raid detected by the {@link RaidDetector}, every join is reported with a single line instead. All reports
+ * go through the {@link ReportAggregator}, so bursts of them end up in a few messages.
  */
 @Component
 public class SuspiciousUsersWarner extends ThreadedListener {
 
     private static final Logger log = LoggerFactory.getLogger(SuspiciousUsersWarner.class);
 
-    private static final int MIN_ACCOUNT_AGE_MINUTES = 30;
-
     private final ReportingChannelFetcher reportingChannelFetcher;
     private final ObjectProvider<ShardManager> shardManager;
-
-    public SuspiciousUsersWarner(ReportingChannelFetcher reportingChannelFetcher, ObjectProvider<ShardManager> shardManager) {
+    private final BanMirror banMirror;
+    private final RaidDetector raidDetector;
+    private final RaidDetectionProperties raidDetectionProperties;
+    private final ReportAggregator reportAggregator;
+    private final SuspicionScorer suspicionScorer;
+    private final BanFanOut banFanOut;
+
+    public SuspiciousUsersWarner(GuildExecutor guildExecutor, ReportingChannelFetcher reportingChannelFetcher,
+                                 ObjectProvider<ShardManager> shardManager, BanMirror banMirror,
+                                 RaidDetector raidDetector, RaidDetectionProperties raidDetectionProperties,
+                                 ReportAggregator reportAggregator, SuspicionScorer suspicionScorer,
+                                 BanFanOut banFanOut) {
+        super(guildExecutor);
         this.reportingChannelFetcher = reportingChannelFetcher;
         this.shardManager = shardManager;
+        this.banMirror = banMirror;
+        this.raidDetector = raidDetector;
+        this.raidDetectionProperties = raidDetectionProperties;
+        this.reportAggregator = reportAggregator;
+        this.suspicionScorer = suspicionScorer;
+        this.banFanOut = banFanOut;
+        raidDetector.onRaidEnded(raid -> {
+            Guild guild = shardManager.getObject().getGuildById(raid.guildId());
+            if (guild != null) {
+                getExecutor(guild).execute(() -> raidEnded(guild, raid));
+            }
+        });
     }
 
     @Override
     public void onGuildMemberJoin(GuildMemberJoinEvent event) {
-        getExecutor(event.getGuild()).execute(() -> memberJoined(event));
+        Guild guild = event.getGuild();
+        //counted on the event thread, so a backed up mailbox does not delay the detection
+        RaidDetector.Raid raid = raidDetector.recordJoin(guild, event.getUser().getIdLong());
+        if (raid != null) {
+            getExecutor(guild).execute(() -> raidStarted(guild, raid));
+        }
+        long joinedAt = System.currentTimeMillis();
+        getExecutor(guild, OverflowPolicy.DROP_OLDEST).execute(() -> memberJoined(event, joinedAt));
     }
 
     @Override
@@ -75,74 +103,75 @@ public class SuspiciousUsersWarner extends ThreadedListener {
     private void memberBanned(GuildBanEvent event, OffsetDateTime eventTime) {
         Guild bannedGuild = event.getGuild();
         User bannedUser = event.getUser();
-        final String reason = AuditLogUtil.getBanReason(bannedGuild, bannedUser, eventTime)
+        final String reason = AuditLogUtil.getBanReason(banMirror, bannedGuild, bannedUser, eventTime)
                 .orElse("Reason could not be retrieved");
         //check whether the banned user is part of other guilds, and notify them
-        bannedUser.getMutualGuilds().forEach(guild -> {
-            //dont notify guild where this user was just banned
-            if (guild.getIdLong() == bannedGuild.getIdLong()) {
-                return;
-            }
+        banFanOut.banned(bannedGuild, bannedUser, reason);
+    }
 
-            Optional<TextChannel> textChannel = reportingChannelFetcher.fetchWorkingReportingChannel(guild);
-            if (textChannel.isEmpty()) {
-                return;
-            }
-            TextChannel reportingChannel = textChannel.get();
-            String messsage = "Member " + bannedUser.getAsMention() + " (" + bannedUser + "):\n";
-            messsage += "Banned just now in " + bannedGuild.getName() + " with reason: " + reason;
+    private void raidStarted(Guild guild, RaidDetector.Raid raid) {
+        reportingChannelFetcher.fetchWorkingReportingChannel(guild).ifPresent(reportingChannel -> reportAggregator.report(
+                reportingChannel, "Possible raid: " + raid.joins() + " members joined within the last minute, "
+                        + raid.youngJoins() + " of them with accounts younger than "
+                        + raidDetectionProperties.youngAccountAge().toHours() + " hours.\n"
+                        + "Every join is reported with one line until it calms down."));
+    }
 
-            reportingChannel.sendMessage(messsage).queue();
-        });
+    private void raidEnded(Guild guild, RaidDetector.Raid raid) {
+        long minutes = Math.max(1, (System.currentTimeMillis() - raid.since()) / 60_000);
+        reportingChannelFetcher.fetchWorkingReportingChannel(guild).ifPresent(reportingChannel -> reportAggregator.report(
+                reportingChannel, "Raid is over after about " + minutes + " minutes: " + raid.joins() + " members joined, "
+                        + raid.youngJoins() + " of them with young accounts."));
     }
 
-    private void memberJoined(GuildMemberJoinEvent event) {
+    private void memberJoined(GuildMemberJoinEvent event, long joinedAt) {
         Optional<TextChannel> textChannel = reportingChannelFetcher.fetchWorkingReportingChannel(event.getGuild());
         if (textChannel.isEmpty()) {
             return;
         }
         TextChannel reportingChannel = textChannel.get();
-
-        Map<Guild, CompletableFuture<Guild.Ban>> banLists = new HashMap<>();
-        shardManager.getObject().getGuildCache().forEach(guild -> {
-            if (guild.getSelfMember().hasPermission(Permission.BAN_MEMBERS)) {
-                banLists.put(guild, guild.retrieveBan(event.getUser()).submit());
-            }
-        });
-
-        Map<Guild, Guild.Ban> userBans = new HashMap<>();
-        for (Map.Entry<Guild, CompletableFuture<Guild.Ban>> entry : banLists.entrySet()) {
-            List<Guild.Ban> bans = new ArrayList<>();
-            try {
-                bans.add(entry.getValue().join());
-            } catch (Exception e) {
-                Throwable realCause = Launcher.unwrap(e);
-                if (!(realCause instanceof ErrorResponseException)
-                        || ((ErrorResponseException) realCause).getErrorResponse() != ErrorResponse.UNKNOWN_BAN) {
-                    log.error("Failed to fetch ban list for guild {}", entry.getKey(), realCause);
-                }
-            }
-            Optional<Guild.Ban> ban = bans.stream()
-                    .filter(b -> b.getUser().equals(event.getUser()))
-                    .findAny();
-            ban.ifPresent(b -> userBans.put(entry.getKey(), b));
+        Member member = event.getMember();
+        User user = event.getUser();
+        int score = suspicionScorer.score(member, joinedAt);
+
+        if (raidDetector.isRaid(event.getGuild())) {
+            //short enough for dozens of joins to fit into a single message
+            reportAggregator.report(reportingChannel, "Raid join: " + user.getAsMention() + " (" + user.getName()
+                    + "), created <t:" + user.getTimeCreated().toEpochSecond() + ":R>, suspicion score " + score);
+            return;
+        }
+        if (!suspicionScorer.isReported(event.getGuild(), score)) {
+            return;
         }
 
         StringBuilder out = new StringBuilder();
-        if (event.getUser().getTimeCreated().isAfter(OffsetDateTime.now().minusMinutes(MIN_ACCOUNT_AGE_MINUTES))) {//report accounts younger than 30 minutes
-            out.append("Account younger than ").append(MIN_ACCOUNT_AGE_MINUTES).append(" minutes").append("\n");
+        out.append("User ").append(user.getAsMention()).append(" (").append(user).append(") joined this server")
+                .append(" with a suspicion score of ").append(score).append(":\n");
+        for (String line : suspicionScorer.explain(member, joinedAt)) {
+            out.append("- ").append(line).append("\n");
+        }
+
+        //guilds whose ban list is not mirrored yet are left out, rather than asking each of them through the api
+        ShardManager sm = shardManager.getObject();
+        long userId = user.getIdLong();
+        Map<Guild, CompletableFuture<Optional<String>>> userBans = new HashMap<>();
+        for (long guildId : banMirror.getBanningGuildIds(userId)) {
+            Guild guild = sm.getGuildById(guildId);
+            if (guild != null && guild.getIdLong() != event.getGuild().getIdLong()) {
+                userBans.put(guild, banMirror.getBanReason(guild, userId));
+            }
         }
         if (!userBans.isEmpty()) {
             out.append("Banned in ").append(userBans.size()).append(" guilds:\n```\n");
-            for (Map.Entry<Guild, Guild.Ban> ban : userBans.entrySet()) {
-                out.append(ban.getKey().getName()).append(" with reason: ").append(ban.getValue().getReason()).append("\n");
+            //this runs on the mailbox of the guild, during a raid, so reasons that still need a request are not waited for
+            for (Map.Entry<Guild, CompletableFuture<Optional<String>>> ban : userBans.entrySet()) {
+                CompletableFuture<Optional<String>> reason = ban.getValue();
+                out.append(ban.getKey().getName()).append(" with reason: ")
+                        .append(reason.isDone() ? reason.join().orElse(null) : "unknown, still being fetched").append("\n");
             }
             out.append("\n```");
         }
 
-        if (!out.isEmpty()) {
-            String user = "User " + event.getUser().getAsMention() + " (" + event.getUser() + ") joined this server:\n";
-            reportingChannel.sendMessage(user + out).queue();
-        }
+        reportAggregator.report(reportingChannel, out.toString());
     }
 }
@@ -17,12 +17,9 @@
 
 package space.npstr.icu.listeners;
 
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
-import com.github.benmanes.caffeine.cache.RemovalCause;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import org.slf4j.Logger;
@@ -40,45 +37,39 @@ public abstract class ThreadedListener extends ListenerAdapter {
             = (t, e) -> log.error("Exception in thread {}", t.getName(), e);
 
     //to be used for non-guild events
-    protected static final ExecutorService DEFAULT_EXEC = provideExecutor(0L);
+    protected static final ExecutorService DEFAULT_EXEC = Executors.newSingleThreadExecutor(
+            r -> {
+                Thread t = new Thread(r, "threaded-listener-0");
+                t.setUncaughtExceptionHandler(exceptionHandler);
+                return t;
+            });
 
-    //per guild
-    private final LoadingCache<Long, ExecutorService> EXECUTORS = Caffeine.newBuilder()
-            .expireAfterAccess(1, TimeUnit.HOURS)
-            .removalListener((Long key, ExecutorService value, RemovalCause cause) -> {
-                if (value != null) {
-                    value.shutdown();
-                }
-            })
-            .build(ThreadedListener::provideExecutor);
+    //per guild, shared by all listeners
+    private final GuildExecutor guildExecutor;
+    private final ListenerStats stats;
+
+    protected ThreadedListener(GuildExecutor guildExecutor) {
+        this.guildExecutor = guildExecutor;
+        this.stats = guildExecutor.register(getClass().getSimpleName());
+    }
 
 
     /**
-     * Creates a new Executor
+     * Get the serial executor of a guild. Returns a shared default executor for null guilds.
+     * Tasks submitted to it are never dropped.
      */
-    private static ExecutorService provideExecutor(long guildId) {
-        return Executors.newSingleThreadExecutor(
-                r -> {
-                    Thread t = new Thread(r, "threaded-listener-" + guildId);
-                    t.setUncaughtExceptionHandler(exceptionHandler);
-                    return t;
-                });
+    protected Executor getExecutor(@Nullable Guild guild) {
+        return getExecutor(guild, OverflowPolicy.NEVER_DROP);
     }
 
-
     /**
-     * Get an Executor from the cache. Returns a shared default executor for null guilds
+     * Get the serial executor of a guild, that handles a full mailbox with the provided policy.
+     * Returns a shared default executor for null guilds.
      */
-    protected ExecutorService getExecutor(@Nullable Guild guild) {
+    protected Executor getExecutor(@Nullable Guild guild, OverflowPolicy overflowPolicy) {
         if (guild == null) {
             return DEFAULT_EXEC;
         }
-        ExecutorService executor = EXECUTORS.get(guild.getIdLong());
-        if (executor != null) {
-            return executor;
-        } else {
-            log.warn("Cached executor for guild {} is somehow null, returning default executor", guild);
-            return DEFAULT_EXEC;
-        }
+        return guildExecutor.forGuild(guild.getIdLong(), stats, overflowPolicy);
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+/**
+ * Serves the metrics of all {@link MetricsSource}s under /metrics, in the Prometheus text exposition format.
+ * <p>
+ * Meant to be scraped locally, so it binds to localhost by default. Started once the application context is up, and
+ * stopped again when it closes, so the port is released.
+ */
+@Component
+public class MetricsServer implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsServer.class);
+
+    private final MetricsProperties metricsProperties;
+    private final List<MetricsSource> sources;
+    @Nullable
+    private HttpServer server;
+
+    public MetricsServer(MetricsProperties metricsProperties, List<MetricsSource> sources) {
+        this.metricsProperties = metricsProperties;
+        this.sources = sources;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (metricsProperties.port() <= 0) {
+            log.info("Metrics endpoint is disabled");
+            return;
+        }
+
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(metricsProperties.host(), metricsProperties.port()), 0);
+            server.createContext("/metrics", exchange -> {
+                try (exchange) {
+                    StringBuilder out = new StringBuilder();
+                    for (MetricsSource source : sources) {
+                        try {
+                            source.writeMetrics(out);
+                        } catch (Exception e) {
+                            log.error("Failed to collect metrics from {}", source.getClass().getSimpleName(), e);
+                        }
+                    }
+                    byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(body);
+                    }
+                }
+            });
+            server.start();
+            this.server = server;
+            log.info("Serving metrics on {}:{}/metrics", metricsProperties.host(), metricsProperties.port());
+        } catch (IOException e) {
+            log.error("Failed to start metrics endpoint", e);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        HttpServer running = server;
+        if (running != null) {
+            //a scrape in progress gets a moment to finish
+            running.stop(1);
+            server = null;
+            log.info("Stopped metrics endpoint");
+        }
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return server != null;
+    }
+}
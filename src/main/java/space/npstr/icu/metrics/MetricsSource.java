@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.metrics;
+
+/**
+ * Something that has metrics to expose through the {@link MetricsServer}.
+ */
+public interface MetricsSource {
+
+    /**
+     * Append the current metrics to the output, in the Prometheus text exposition format.
+     */
+    void writeMetrics(StringBuilder out);
+
+    static void counter(StringBuilder out, String name, String labels, long value) {
+        sample(out, name, labels, value);
+    }
+
+    static void gauge(StringBuilder out, String name, String labels, double value) {
+        sample(out, name, labels, value);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.suspicion;
+
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.utils.TimeUtil;
+import org.springframework.stereotype.Component;
+
+/**
+ * Scores fresh and young accounts, with the creation time read from the id of the user.
+ */
+@Component
+public class AccountAgeFeature implements SuspicionFeature {
+
+    private final long freshAccountAgeMillis;
+    private final int freshAccountScore;
+    private final long youngAccountAgeMillis;
+    private final int youngAccountScore;
+
+    public AccountAgeFeature(SuspicionProperties properties) {
+        this.freshAccountAgeMillis = properties.freshAccountAge().toMillis();
+        this.freshAccountScore = properties.freshAccountScore();
+        this.youngAccountAgeMillis = properties.youngAccountAge().toMillis();
+        this.youngAccountScore = properties.youngAccountScore();
+    }
+
+    @Override
+    public int score(Member member, long now) {
+        long age = now - createdAt(member);
+        if (age < freshAccountAgeMillis) {
+            return freshAccountScore;
+        }
+        return age < youngAccountAgeMillis ? youngAccountScore : 0;
+    }
+
+    @Override
+    public String describe(Member member, long now) {
+        return "Account created <t:" + createdAt(member) / 1000 + ":R>";
+    }
+
+    private static long createdAt(Member member) {
+        return (member.getIdLong() >>> TimeUtil.TIMESTAMP_OFFSET) + TimeUtil.DISCORD_EPOCH;
+    }
+}
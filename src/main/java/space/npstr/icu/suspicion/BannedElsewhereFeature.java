@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.suspicion;
+
+import net.dv8tion.jda.api.entities.Member;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.db.entities.LongSets;
+import space.npstr.icu.discord.BanMirror;
+
+/**
+ * Scores users that are banned in other guilds, as far as their ban lists are mirrored.
+ */
+@Component
+public class BannedElsewhereFeature implements SuspicionFeature {
+
+    private final BanMirror banMirror;
+    private final int scorePerGuild;
+    private final int maxScore;
+
+    public BannedElsewhereFeature(BanMirror banMirror, SuspicionProperties properties) {
+        this.banMirror = banMirror;
+        this.scorePerGuild = properties.bannedElsewhereScore();
+        this.maxScore = properties.bannedElsewhereMaxScore();
+    }
+
+    @Override
+    public int score(Member member, long now) {
+        return (int) Math.min(maxScore, (long) otherGuilds(member) * scorePerGuild);
+    }
+
+    @Override
+    public String describe(Member member, long now) {
+        return "Banned in " + otherGuilds(member) + " other guilds";
+    }
+
+    private int otherGuilds(Member member) {
+        long[] guildIds = banMirror.getBanningGuildIds(member.getIdLong());
+        return LongSets.contains(guildIds, member.getGuild().getIdLong()) ? guildIds.length - 1 : guildIds.length;
+    }
+}
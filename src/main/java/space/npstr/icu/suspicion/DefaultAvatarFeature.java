@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.suspicion;
+
+import net.dv8tion.jda.api.entities.Member;
+import org.springframework.stereotype.Component;
+
+/**
+ * Scores accounts that never set an avatar.
+ */
+@Component
+public class DefaultAvatarFeature implements SuspicionFeature {
+
+    private final int score;
+
+    public DefaultAvatarFeature(SuspicionProperties properties) {
+        this.score = properties.defaultAvatarScore();
+    }
+
+    @Override
+    public int score(Member member, long now) {
+        return member.getUser().getAvatarId() == null ? score : 0;
+    }
+
+    @Override
+    public String describe(Member member, long now) {
+        return "No avatar";
+    }
+}
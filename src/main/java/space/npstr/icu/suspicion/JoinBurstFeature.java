@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.suspicion;
+
+import net.dv8tion.jda.api.entities.Member;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.listeners.RaidDetector;
+
+/**
+ * Scores joins that come in shortly after many other joins of the same guild.
+ */
+@Component
+public class JoinBurstFeature implements SuspicionFeature {
+
+    private final RaidDetector raidDetector;
+    private final int scorePerJoin;
+    private final int maxScore;
+
+    public JoinBurstFeature(RaidDetector raidDetector, SuspicionProperties properties) {
+        this.raidDetector = raidDetector;
+        this.scorePerJoin = properties.joinBurstScore();
+        this.maxScore = properties.joinBurstMaxScore();
+    }
+
+    @Override
+    public int score(Member member, long now) {
+        return (int) Math.min(maxScore, otherJoins(member, now) * scorePerJoin);
+    }
+
+    @Override
+    public String describe(Member member, long now) {
+        return otherJoins(member, now) + " other joins within 10 seconds";
+    }
+
+    //the join being scored has been counted already
+    private long otherJoins(Member member, long now) {
+        return Math.max(0, raidDetector.getBurstJoins(member.getGuild(), now) - 1);
+    }
+}
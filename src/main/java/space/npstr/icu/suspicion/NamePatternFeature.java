@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.suspicion;
+
+import java.util.regex.Pattern;
+import net.dv8tion.jda.api.entities.Member;
+import org.jspecify.annotations.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Scores users whose name matches a configured pattern, by default names ending in a long number, which generated
+ * names of bulk created accounts tend to do.
+ */
+@Component
+public class NamePatternFeature implements SuspicionFeature {
+
+    @Nullable
+    private final Pattern pattern;
+    private final int score;
+
+    public NamePatternFeature(SuspicionProperties properties) {
+        this.pattern = properties.namePattern().isBlank() ? null : Pattern.compile(properties.namePattern());
+        this.score = properties.namePatternScore();
+    }
+
+    @Override
+    public int score(Member member, long now) {
+        return pattern != null && pattern.matcher(member.getUser().getName()).find() ? score : 0;
+    }
+
+    @Override
+    public String describe(Member member, long now) {
+        return "Name " + member.getUser().getName() + " looks generated";
+    }
+}
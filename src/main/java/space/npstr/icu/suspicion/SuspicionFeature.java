@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.suspicion;
+
+import net.dv8tion.jda.api.entities.Member;
+
+/**
+ * A cheap, local property of a joining member that makes it more or less suspicious. Every feature registered as a bean
+ * is part of the {@link SuspicionScorer}.
+ * <p>
+ * Scoring happens for every join, so it must not make requests to Discord or the database, and should not allocate.
+ */
+public interface SuspicionFeature {
+
+    /**
+     * @param now epoch millis of the join
+     * @return the score of the member for this feature, 0 if nothing about it is suspicious
+     */
+    int score(Member member, long now);
+
+    /**
+     * Explains a score for a report. Only called for members with a score above 0 that are reported.
+     */
+    String describe(Member member, long now);
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.suspicion;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * @param threshold               suspicion score from which joins are reported, unless a guild sets its own
+ * @param freshAccountAge         accounts younger than this count as fresh
+ * @param freshAccountScore       score of fresh accounts
+ * @param youngAccountAge         accounts younger than this, but not fresh, count as young
+ * @param youngAccountScore       score of young accounts
+ * @param defaultAvatarScore      score of accounts without an avatar
+ * @param namePattern             regex that is searched in the names of joining users, empty to disable
+ * @param namePatternScore        score of users whose name matches the pattern
+ * @param bannedElsewhereScore    score per other guild the user is banned in
+ * @param bannedElsewhereMaxScore maximum score for being banned in other guilds
+ * @param joinBurstScore          score per other join of the guild within the last 10 seconds
+ * @param joinBurstMaxScore       maximum score for other joins within the last 10 seconds
+ */
+@ConfigurationProperties(prefix = "app.suspicion")
+public record SuspicionProperties(
+	@DefaultValue("40") int threshold,
+	@DefaultValue("30m") Duration freshAccountAge,
+	@DefaultValue("40") int freshAccountScore,
+	@DefaultValue("7d") Duration youngAccountAge,
+	@DefaultValue("15") int youngAccountScore,
+	@DefaultValue("10") int defaultAvatarScore,
+	@DefaultValue("\\d{4,}$") String namePattern,
+	@DefaultValue("10") int namePatternScore,
+	@DefaultValue("40") int bannedElsewhereScore,
+	@DefaultValue("120") int bannedElsewhereMaxScore,
+	@DefaultValue("2") int joinBurstScore,
+	@DefaultValue("20") int joinBurstMaxScore
+) {}
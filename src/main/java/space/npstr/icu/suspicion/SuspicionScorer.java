@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 - 2023 Dennis Neufeld
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.npstr.icu.suspicion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import org.springframework.stereotype.Component;
+import space.npstr.icu.db.entities.GuildSettingsCache;
+import space.npstr.icu.metrics.MetricsSource;
+
+/**
+ * Sums the scores of all {@link SuspicionFeature}s for a joining member. Joins scoring at least the threshold of their
+ * guild get reported.
+ */
+@Component
+public class SuspicionScorer implements MetricsSource {
+
+    private final SuspicionFeature[] features;
+    private final GuildSettingsCache guildSettingsCache;
+    private final int defaultThreshold;
+
+    private final LongAdder scored = new LongAdder();
+    private final LongAdder reported = new LongAdder();
+
+    public SuspicionScorer(List<SuspicionFeature> features, GuildSettingsCache guildSettingsCache,
+                           SuspicionProperties properties) {
+        this.features = features.toArray(new SuspicionFeature[0]);
+        this.guildSettingsCache = guildSettingsCache;
+        this.defaultThreshold = properties.threshold();
+    }
+
+    /**
+     * @param now epoch millis of the join
+     */
+    public int score(Member member, long now) {
+        scored.increment();
+        int score = 0;
+        for (SuspicionFeature feature : features) {
+            score += feature.score(member, now);
+        }
+        return score;
+    }
+
+    /**
+     * @return true if a join with the score should be reported in the guild
+     */
+    public boolean isReported(Guild guild, int score) {
+        boolean report = score > 0 && score >= threshold(guild);
+        if (report) {
+            reported.increment();
+        }
+        return report;
+    }
+
+    /**
+     * @return a line for each feature the member scored on
+     */
+    public List<String> explain(Member member, long now) {
+        List<String> lines = new ArrayList<>();
+        for (SuspicionFeature feature : features) {
+            int score = feature.score(member, now);
+            if (score != 0) {
+                lines.add(feature.describe(member, now) + " (+" + score + ")");
+            }
+        }
+        return lines;
+    }
+
+    public int threshold(Guild guild) {
+        Integer threshold = guildSettingsCache.get(guild).getSuspicionThreshold();
+        return threshold != null ? threshold : defaultThreshold;
+    }
+
+    public int defaultThreshold() {
+        return defaultThreshold;
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        MetricsSource.counter(out, "icu_suspicion_scored_joins_total", "", scored.sum());
+        MetricsSource.counter(out, "icu_suspicion_reported_joins_total", "", reported.sum());
+    }
+}